@@ -3,17 +3,65 @@
 
 import javax.swing.*;
 import javax.sound.sampled.*;
+import com.sun.net.httpserver.HttpServer;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.awt.geom.Arc2D;
 import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import javax.imageio.ImageIO;
 
 /**
  * PacmanClone.java
@@ -91,6 +139,10 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
     private final boolean[] tunnelRows = new boolean[GRID_H];
     private List<Point> ghostStarts = new ArrayList<>();
     private Point pacStart = null;
+    private PelletIndex pelletIndex;
+    private Sightlines sightlines;
+    private Junctions junctions;
+    private Point[] patrolCorners;
 
     // Entities
     class Entity {
@@ -99,6 +151,8 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         String req = null;
         double speed;
         int radius;
+        final Trail trail = new Trail();   // where this entity went during the current step
+        int centerTile = -1;            // tile whose center was last handled by travel()
         Entity(double cx, double cy, double spd, int rad) {
             x = cx; y = cy; speed = spd; radius = rad;
         }
@@ -113,6 +167,67 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         }
     }
 
+    /**
+     * Piecewise linear trajectory of an entity within one simulation step, as
+     * (time, x, y) waypoints. Turns add a waypoint at the tile center, tunnel
+     * wraps add two waypoints with the same time.
+     */
+    static final class Trail {
+        double[] t = new double[8], x = new double[8], y = new double[8];
+        int n;
+
+        void reset(double px, double py) {
+            n = 0;
+            add(0.0, px, py);
+        }
+
+        void add(double pt, double px, double py) {
+
+            if (n == t.length) {
+                t = Arrays.copyOf(t, n * 2);
+                x = Arrays.copyOf(x, n * 2);
+                y = Arrays.copyOf(y, n * 2);
+            }
+            t[n] = pt; x[n] = px; y[n] = py;
+            n++;
+        }
+
+        /** Smallest distance between the two trajectories over the step. */
+        static double closestApproach(Trail a, Trail b) {
+
+            double best = Math.hypot(a.x[a.n - 1] - b.x[b.n - 1], a.y[a.n - 1] - b.y[b.n - 1]);
+            int i = 0, j = 0;
+
+            while (i < a.n - 1 && j < b.n - 1) {
+                if (a.t[i + 1] <= a.t[i]) { i++; continue; }
+                if (b.t[j + 1] <= b.t[j]) { j++; continue; }
+
+                double t0 = Math.max(a.t[i], b.t[j]);
+                double t1 = Math.min(a.t[i + 1], b.t[j + 1]);
+
+                if (t1 > t0) {
+                    // both move linearly on [t0, t1]: minimise |r0 + s * d| for s in [0, 1]
+                    double rx0 = a.xAt(i, t0) - b.xAt(j, t0), ry0 = a.yAt(i, t0) - b.yAt(j, t0);
+                    double dx = a.xAt(i, t1) - b.xAt(j, t1) - rx0, dy = a.yAt(i, t1) - b.yAt(j, t1) - ry0;
+                    double dd = dx * dx + dy * dy;
+                    double s = dd == 0 ? 0 : Math.max(0, Math.min(1, -(rx0 * dx + ry0 * dy) / dd));
+                    best = Math.min(best, Math.hypot(rx0 + s * dx, ry0 + s * dy));
+                }
+
+                if (a.t[i + 1] <= b.t[j + 1]) i++; else j++;
+            }
+            return best;
+        }
+
+        private double xAt(int seg, double pt) {
+            return x[seg] + (x[seg + 1] - x[seg]) * (pt - t[seg]) / (t[seg + 1] - t[seg]);
+        }
+
+        private double yAt(int seg, double pt) {
+            return y[seg] + (y[seg + 1] - y[seg]) * (pt - t[seg]) / (t[seg + 1] - t[seg]);
+        }
+    }
+
     class Pacman extends Entity {
         double mouth = 0.0;
         int mouthDir = 1;
@@ -121,7 +236,7 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         double poweredUntil = 0.0;
         String facing = "R";
         Pacman(double cx, double cy){ super(cx, cy, PAC_SPEED, TILE/2-2); }
-        boolean isPowered(){ return System.currentTimeMillis()/1000.0 < poweredUntil; }
+        boolean isPowered(){ return simTime < poweredUntil; }
     }
 
     class Ghost extends Entity {
@@ -155,11 +270,20 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         final Difficulty difficulty;
         final double baseSpeed;
         final double vulnSpeed;
-        final Random rnd = new Random();
+        final StateRandom rnd = new StateRandom(seedSource.nextLong());
         double releaseAt = 0.0;
         boolean inHouse = true;
         double bouncePhase = rnd.nextDouble() * Math.PI * 2;
         Point homeCenter;
+        String lastDecision = null;    // last direction the full AI picked
+        boolean starved = false;       // missed its slot at the previous junction
+        boolean aiSlot = false;        // may run the full AI this tick, see AiScheduler
+        boolean human = false;         // steered by the versus peer through req
+        int lastSeen = -1;             // tile Pacman was last seen on, with -Dpacman.perception
+        double lastSeenAt = 0.0;
+        int patrol = 0;                // corner this ghost heads for while it has no lead
+        final TimerWheel.Timeout respawnTimer = new TimerWheel.Timeout(() -> respawnGhost(this));
+        final TimerWheel.Timeout releaseTimer = new TimerWheel.Timeout(() -> releaseGhost(this));
 
         Ghost(double cx, double cy, Color col, Point home, Difficulty diff) {
             super(cx, cy, diff.baseSpeed, TILE/2-2);
@@ -180,7 +304,15 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
 
     private Pacman pac;
     private List<Ghost> ghosts = new ArrayList<>();
-    private final ExecutorService ghostExecutor = Executors.newFixedThreadPool(Math.max(2, GHOST_COLORS.length));
+    // travel() callbacks, made once rather than per entity per step
+    private final Consumer<Entity> pacCenterHook = this::pacAtCenter;
+    private final Consumer<Entity> ghostCenterHook = e -> ghostAtCenter((Ghost)e);
+    private final ExecutorService ghostExecutor;
+    // All timed state runs off simulation ticks, see TimerWheel
+    private final TimerWheel timers = new TimerWheel(256);
+    private final TimerWheel.Timeout powerTimer = new TimerWheel.Timeout(this::endPower);
+    private AiScheduler aiScheduler = new AiScheduler(
+            Long.getLong("pacman.aiBudgetMicros", 0) * 1000, Integer.getInteger("pacman.aiDecisionsPerTick", 0));
     private double nextHouseReleaseTime;
     private int releasesSinceReset = 0;
     private int ghostCount = 0;
@@ -192,59 +324,160 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
     private Timer timer;
     private long lastTime;
     private boolean paused = false;
+
+    // Simulation clock: advanced in fixed SIM_DT steps, scaled by the run speed.
+    // Collisions are swept, so headless runs can lower -Dpacman.tickRate to save CPU.
+    static final int TICK_RATE = Math.max(1, Integer.getInteger("pacman.tickRate", FPS));
+    static final double SIM_DT = 1.0 / TICK_RATE;
+    static final double[] SPEEDS = {0.25, 0.5, 1, 2, 4, 8, 16, 32, Double.POSITIVE_INFINITY};
+    private static final int NORMAL_SPEED = 2;
+    private static final long FRAME_BUDGET_NANOS = 750_000_000L / FPS;
+    private static final double MAX_BACKLOG = 0.25;  // seconds of sim time kept when falling behind
+    private static final double BATCH_GAME_LIMIT = 600.0;
+    private double simTime = 0.0;
+    private long tickCount = 0;
+
+    // Headless macro-stepping: upcoming steps proven free of contacts and timers
+    static final boolean MACRO = Boolean.getBoolean("pacman.macro");
+    // Ghosts make their random turns only at junctions, so a corridor run draws no randomness
+    static final boolean JUNCTION_TURNS = Boolean.getBoolean("pacman.junctionTurns");
+    private static final double HOUSE_WOBBLE = 12.0;   // how far a ghost bouncing in the house can move
+    private int coastTicks = 0;
+    private long coasted = 0;
+    private double accumulator = 0.0;
+    private int speedIndex = NORMAL_SPEED;
     private boolean gameOver = false;
 
+    // Seed for all ghost randomness, recorded with the score
+    private final long seed;
+    private final Random seedSource;
+    static final long MAP_HASH = mapHash(RAW_MAP);
+
+    // Ghosts only chase what they have seen, see Sightlines
+    static final boolean PERCEPTION = Boolean.getBoolean("pacman.perception");
+    private static final double SIGHT_MEMORY = 5.0;
+    private boolean scoreRecorded = false;
+    private Leaderboard.Entry bestForMap = null;
+    private double percentile = -1;
+
+    // Autopilot steers Pacman when nobody is at the keyboard (spectator wall, batch)
+    private boolean autopilot = false;
+    private boolean muted = false;
+    private boolean firstFramePainted = false;
+    private final StateRandom autoRnd;
+    private int autoTile = -1;
+
+    // Tiles (y * GRID_W + x) cleared so far, in order, for incremental redraws
+    private int[] eatenTiles = new int[64];
+    private int eatenCount = 0;
+
+    // Out-of-process observers, see -Dpacman.export
+    private FrameExporter exporter = null;
+    private PixelObserver observer = null;
+
+    // Side effects of game events (sound, stats, ...) run on listener threads
+    private EventBus events = null;
+    private StatsListener stats = null;
+
+    // Two-player session over UDP, null for a normal game
+    private Versus versus = null;
+    private boolean replaying = false;   // re-simulating after a rollback, side effects already happened
+    private TimerWheel.Timeout[] allTimeouts = null;
+
+    // Key presses of this game for --render, see -Dpacman.record
+    private Replay recording = null;
+
     public PacmanClone() {
+        this(System.nanoTime(), null, false);
+    }
 
-        setPreferredSize(new Dimension(SCREEN_W, SCREEN_H));
+    /** Interactive game; with a link, one side of a versus session steering Pacman or ghost 0. */
+    PacmanClone(long seed, Link link, boolean pacSide) {
+
+        this(Executors.newFixedThreadPool(Math.max(2, GHOST_COLORS.length)), seed);
         setFocusable(true);
         addKeyListener(this);
-        parseMap();
-        initEntities();
-        lastTime = System.currentTimeMillis();
+        exporter = FrameExporter.fromProperty("");
+        events = new EventBus(1024);
+        events.subscribe("audio", new AudioListener());
+        if (Metrics.ENABLED){
+            stats = new StatsListener();
+            events.subscribe("stats", stats);
+            Metrics.watch(stats);
+            Metrics.watch(events);
+        }
+        if (link != null){
+            versus = new Versus(this, pacSide, link);
+        } else {
+            recordInputs("");
+        }
+        lastTime = System.nanoTime();
         timer = new Timer(1000 / FPS, this);
         timer.start();
         
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (versus != null){
+                System.out.println(versus.summary());
+                versus.link.close();
+            }
+            if (recording != null && !scoreRecorded){
+                saveReplay();
+            }
+            events.shutdown();
             ghostExecutor.shutdownNow();
             SoundManager.shutdown();
         }));
     }
 
-    private void parseMap(){
-
-        for (int y=0;y<GRID_H;y++){
-
-            String row = RAW_MAP[y];
-
-            for (int x=0;x<GRID_W;x++){
-                char ch = (x < row.length()) ? row.charAt(x) : ' ';
-                if (ch == '#'){
-                    walls[x][y] = true;
-                } else if (ch == '.'){
-                    pellets[x][y] = true;
+    /**
+     * Game without its own timer or input, stepped by the owner through tick().
+     * The executor may be shared between games and is not shut down here.
+     */
+    PacmanClone(ExecutorService ghostExecutor) {
+        this(ghostExecutor, System.nanoTime());
+    }
 
-                } else if (ch == 'o'){
-                    powers[x][y] = true;
+    PacmanClone(ExecutorService ghostExecutor, long seed) {
 
-                } else if (ch == 'G') {
-                    ghostStarts.add(new Point(x,y));
+        this.ghostExecutor = ghostExecutor;
+        this.seed = seed;
+        this.seedSource = new Random(seed);
+        this.autoRnd = new StateRandom(~seed);
+        if (Metrics.ENABLED) Metrics.watch(ghostExecutor);
+        StartupProfile.mark("swing panel");
+        setPreferredSize(new Dimension(SCREEN_W, SCREEN_H));
+        loadMap(MapCache.shared());
+        StartupProfile.mark("map loaded");
+        initEntities();
+        StartupProfile.mark("entities and pellet index");
+    }
 
-                } else if (ch == 'P'){
-                    pacStart = new Point(x,y);
-                }
+    /**
+     * Headless games are never shown by Swing, so skip installing a look and
+     * feel; doing so loads the UI defaults and fonts and dominates startup.
+     */
+    @Override
+    public void updateUI(){
+        if (!GraphicsEnvironment.isHeadless()){
+            super.updateUI();
+        }
+    }
 
-                if (y >= GRID_H - 2) {
-                    walls[x][y] = true;
-                    pellets[x][y] = false;
-                    powers[x][y] = false;
-                }
-            }
+    /** Copies the map artifacts into this game; pellets and spawn lists are per game. */
+    private void loadMap(MapCache map){
 
-            boolean leftTunnel = y < GRID_H - 2 && !walls[0][y] && !walls[1][y];
-            boolean rightTunnel = y < GRID_H - 2 && !walls[GRID_W - 1][y] && !walls[GRID_W - 2][y];
-            tunnelRows[y] = leftTunnel || rightTunnel;
+        for (int x=0;x<GRID_W;x++){
+            System.arraycopy(map.walls[x], 0, walls[x], 0, GRID_H);
+            System.arraycopy(map.pellets[x], 0, pellets[x], 0, GRID_H);
+            System.arraycopy(map.powers[x], 0, powers[x], 0, GRID_H);
+        }
+        System.arraycopy(map.tunnelRows, 0, tunnelRows, 0, GRID_H);
+        for (Point p : map.ghostStarts){
+            ghostStarts.add(new Point(p));
         }
+        pacStart = map.pacStart == null ? null : new Point(map.pacStart);
+        sightlines = map.sightlines;
+        junctions = map.junctions;
     }
 
     private boolean hasGhostStart(int x, int y) {
@@ -317,7 +550,7 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
 
         ensureGhostStarts();
         ghosts.clear();
-        double now = System.currentTimeMillis() / 1000.0;
+        double now = simTime;
         ghostCount = Math.min(4, ghostStarts.size());
         releasesSinceReset = 0;
         nextHouseReleaseTime = now + INITIAL_RELEASE_DELAY;
@@ -332,6 +565,7 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
             ghost.dir = "U";
             ghost.x = ghost.homeCenter.x;
             ghost.y = ghost.homeCenter.y;
+            ghost.patrol = i % 4;
             scheduleGhostRelease(ghost, now);
             ghosts.add(ghost);
         }
@@ -349,6 +583,28 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
             int[][] corners = {{1,1},{GRID_W-2,1},{1,GRID_H-2},{GRID_W-2, GRID_H-2}};
             for (int[] cxy: corners) if (!walls[cxy[0]][cxy[1]]) powers[cxy[0]][cxy[1]] = true;
         }
+
+        pelletIndex = new PelletIndex(walls, tunnelRows, pellets, powers);
+        patrolCorners = new Point[]{
+                nearestNode(0, 0), nearestNode(GRID_W - 1, 0),
+                nearestNode(GRID_W - 1, GRID_H - 1), nearestNode(0, GRID_H - 1)
+        };
+    }
+
+    /** Closest junction to a tile; ghosts only re-target on junctions, so patrols aim at one. */
+    private Point nearestNode(int tx, int ty){
+
+        Point best = new Point(tx, ty);
+        int bestDist = Integer.MAX_VALUE;
+
+        for (int y=0;y<GRID_H;y++) for (int x=0;x<GRID_W;x++){
+            int d = Math.abs(x - tx) + Math.abs(y - ty);
+            if (!walls[x][y] && junctions.isNode(x, y) && d < bestDist){
+                best = new Point(x, y);
+                bestDist = d;
+            }
+        }
+        return best;
     }
 
     private Point gridCenterPoint(int tx, int ty){
@@ -367,13 +623,256 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
 
     // --- Game loop tick ---
     public void actionPerformed(ActionEvent e){
-        long now = System.currentTimeMillis();
-        double dt = (now - lastTime) / 1000.0;
+        long now = System.nanoTime();
+        double dt = (now - lastTime) / 1e9;
         lastTime = now;
-        if (!paused && !gameOver) updateGame(dt);
+        if (versus != null) versus.frame(dt);
+        else tick(dt);
+        // however many steps ran, draw once per timer tick
         repaint();
     }
 
+    /**
+     * Advances the simulation by {@code realDt} seconds of wall time at the
+     * current speed, in fixed SIM_DT steps so collisions behave the same at
+     * any speed. Stops when the frame budget is used up; at maximum speed that
+     * is the only limit.
+     */
+    void tick(double realDt){
+
+        if (paused || gameOver){
+            return;
+        }
+
+        double speed = SPEEDS[speedIndex];
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        accumulator = Double.isInfinite(speed) ? Double.POSITIVE_INFINITY : accumulator + realDt * speed;
+
+        while (accumulator >= SIM_DT && !gameOver){
+            updateGame(SIM_DT);
+            accumulator -= SIM_DT;
+
+            if (System.nanoTime() >= deadline){
+                break;
+            }
+        }
+
+        // drop what we could not catch up on instead of spiralling
+        accumulator = Math.min(accumulator, Double.isInfinite(speed) ? 0.0 : MAX_BACKLOG);
+    }
+
+    private void emit(EventBus.Type type, int tx, int ty, int ghost){
+
+        if (events == null || replaying){
+            return;
+        }
+
+        EventBus.Event e = events.claim();
+        e.type = type;
+        e.tick = tickCount;
+        e.x = tx;
+        e.y = ty;
+        e.ghost = ghost;
+        e.score = pac.score;
+        // every sub-step would start a tone, which floods the sound executor when fast-forwarding
+        e.audible = !muted && SPEEDS[speedIndex] <= 4;
+        events.publish();
+    }
+
+    /** Like runHeadless(double), rendering an observation for {@code observer} as the game goes. */
+    int runHeadless(double maxSimSeconds, PixelObserver observer){
+        this.observer = observer;
+        return runHeadless(maxSimSeconds);
+    }
+
+    /** Runs an autopilot game to completion without any window; returns the score. */
+    int runHeadless(double maxSimSeconds){
+
+        autopilot = true;
+        muted = true;
+
+        if (!gameOver && simTime < maxSimSeconds){
+            headlessStep(maxSimSeconds);
+            StartupProfile.report("first step");
+        }
+
+        while (!gameOver && simTime < maxSimSeconds){
+            headlessStep(maxSimSeconds);
+        }
+
+        if (!scoreRecorded){
+            // ran out of time, still worth keeping
+            recordScore();
+        }
+        return pac.score;
+    }
+
+    private void headlessStep(double until){
+        if (MACRO && coastTicks == 0){
+            coastTicks = contactHorizon();
+        }
+        // the last coasting step runs in full, it may be the one before a contact
+        if (coastTicks > 1 && glide(coastTicks - 1, until) > 0){
+            return;
+        }
+        updateGame(SIM_DT);
+    }
+
+    static void runBatch(int games){
+
+        int workers = Math.max(1, Math.min(games, Runtime.getRuntime().availableProcessors()));
+        ExecutorService ghostPool = Executors.newFixedThreadPool(Math.max(2, workers), r -> {
+            Thread t = new Thread(r, "batch-ghosts");
+            t.setDaemon(true);
+            return t;
+        });
+        ExecutorService gamePool = Executors.newFixedThreadPool(workers);
+        List<Future<PacmanClone>> results = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < games; i++){
+            String suffix = "." + i;
+            results.add(gamePool.submit(() -> {
+                PacmanClone game = new PacmanClone(ghostPool);
+                game.exporter = FrameExporter.fromProperty(suffix);
+                game.observer = PixelObserver.fromProperty(suffix);
+                game.autopilot = true;
+                game.recordInputs(suffix);
+                game.runHeadless(BATCH_GAME_LIMIT);
+                if (game.exporter != null) game.exporter.close();
+                if (game.observer != null) game.observer.close();
+                return game;
+            }));
+        }
+
+        long total = 0;
+        int best = 0;
+        long decisions = 0, degraded = 0, steps = 0, coasted = 0;
+
+        for (Future<PacmanClone> f : results){
+            try {
+                PacmanClone game = f.get();
+                int score = game.pac.score;
+                decisions += game.aiScheduler.decisions();
+                degraded += game.aiScheduler.degraded();
+                steps += game.tickCount;
+                coasted += game.coasted;
+                total += score;
+                best = Math.max(best, score);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                ex.getCause().printStackTrace();
+            }
+        }
+        gamePool.shutdownNow();
+        ghostPool.shutdownNow();
+
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d games at %d Hz in %.2fs, mean score %.1f, best %d, AI degraded %d of %d junctions%n",
+                games, TICK_RATE, secs, games == 0 ? 0.0 : (double)total / games, best, degraded, degraded + decisions);
+        if (MACRO){
+            System.out.printf("macro-stepping: %.1f%% of %d steps coasted%n", steps == 0 ? 0.0 : 100.0 * coasted / steps, steps);
+        }
+    }
+
+    /** Prints the best {@code count} games in the score file, and what its index left out. */
+    static void printScores(int count){
+
+        Leaderboard board = Leaderboard.shared();
+
+        if (board == null){
+            return;
+        }
+
+        List<Leaderboard.Entry> top = board.topK(count);
+        System.out.printf("%d games recorded%n", board.size());
+        for (int i = 0; i < top.size(); i++){
+            Leaderboard.Entry e = top.get(i);
+            System.out.printf("%3d. %6d  %-4s seed %-20d map %016x  %tF %<tT  top %.1f%%%n",
+                    i + 1, e.score, e.won ? "won" : "lost", e.seed, e.mapHash, e.time,
+                    100.0 - board.percentileRank(e.score));
+        }
+        if (board.seedsDropped() > 0 || board.mapsDropped() > 0){
+            System.out.printf("best-score index full: %d games by seed and %d by map not tracked%n",
+                    board.seedsDropped(), board.mapsDropped());
+        }
+    }
+
+    /**
+     * Versus without a window for trying two processes side by side: this
+     * side presses random directions, both stop after the same tick and print
+     * their rollback metrics and final state hash, which match when the
+     * peers stayed in sync.
+     */
+    static void runVersusBot(boolean pacSide, Link link, long seed, double seconds){
+
+        ExecutorService pool = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "versus-ghosts");
+            t.setDaemon(true);
+            return t;
+        });
+        PacmanClone game = new PacmanClone(pool, seed);
+        Versus session = new Versus(game, pacSide, link);
+        session.stopAt(Math.round(seconds * TICK_RATE));
+
+        Random bot = new Random(pacSide ? 1 : 2);
+        long frame = 1_000_000_000L / FPS;
+        long last = System.nanoTime(), next = last;
+        long giveUp = last + 10_000_000_000L;
+        boolean settled = false;
+
+        while (System.nanoTime() < giveUp){
+            LockSupport.parkNanos(next - System.nanoTime());
+            next += frame;
+            long now = System.nanoTime();
+
+            if (bot.nextInt(12) == 0){
+                session.press(String.valueOf("LRUD".charAt(bot.nextInt(4))));
+            }
+            session.frame((now - last) / 1e9);
+            last = now;
+
+            if (!settled && session.settled()){
+                // keep answering for a moment so the peer gets our last inputs too
+                settled = true;
+                giveUp = now + 1_000_000_000L;
+            } else if (!settled && session.connected){
+                giveUp = Math.max(giveUp, now + 5_000_000_000L);
+            }
+        }
+
+        System.out.println(session.summary());
+        link.close();
+        pool.shutdownNow();
+    }
+
+    void setSpeedIndex(int idx){
+        speedIndex = Math.max(0, Math.min(SPEEDS.length - 1, idx));
+        accumulator = 0.0;
+    }
+
+    String speedLabel(){
+        double s = SPEEDS[speedIndex];
+        if (Double.isInfinite(s)) return "MAX";
+        return s == Math.rint(s) ? "x" + (int)s : "x" + s;
+    }
+
+    boolean isGameOver(){ return gameOver; }
+
+    int eatenCount(){ return eatenCount; }
+
+    int eatenTile(int i){ return eatenTiles[i]; }
+
+    private void logEaten(int tx, int ty){
+
+        if (eatenCount == eatenTiles.length){
+            eatenTiles = Arrays.copyOf(eatenTiles, eatenCount * 2);
+        }
+        eatenTiles[eatenCount++] = ty * GRID_W + tx;
+    }
+
     private boolean inBounds(int tx, int ty){
         return tx>=0 && tx<GRID_W && ty>=0 && ty<GRID_H;
     }
@@ -387,7 +886,19 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
 
     private void updateGame(double dt){
 
-        // pac movement
+        long start = Metrics.ENABLED ? System.nanoTime() : 0L, lap = start;
+        boolean coasting = coastTicks > 0;
+        if (coasting) {
+            coastTicks--;
+            coasted++;
+        }
+
+        simTime += dt;
+        tickCount++;
+        timers.advance(tickCount);
+        if (Metrics.ENABLED) lap = Metrics.lap(Metrics.Phase.TIMERS, lap);
+
+        // pac movement, eating pellets on every tile center it passes
         updatePac(dt);
 
         // pellets collection
@@ -396,85 +907,341 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         if (inBounds(pt.x, pt.y)) {
             Point pc = gridCenter(pt.x, pt.y);
             if (Math.abs(pac.x - pc.x) < 6 && Math.abs(pac.y - pc.y) < 6) {
-                if (pellets[pt.x][pt.y]) {
-                    pellets[pt.x][pt.y] = false; pac.score += 10;
-                    SoundManager.play(SoundManager.Effect.PELLET);
-                } else if (powers[pt.x][pt.y]) {
-                    powers[pt.x][pt.y] = false; pac.score += 50;
-                    pac.poweredUntil = System.currentTimeMillis()/1000.0 + POWER_TIME;
-                    for (Ghost g: ghosts) {
-                        g.vulnerable = true; g.vulnEnd = pac.poweredUntil; g.speed = g.vulnSpeed;
-                    }
-                    SoundManager.play(SoundManager.Effect.POWER);
-                }
+                collectAt(pt.x, pt.y);
             }
         }
 
+        if (Metrics.ENABLED) lap = Metrics.lap(Metrics.Phase.PACMAN, lap);
+
         // ghost updates
+        aiScheduler.beginTick(tickCount, ghosts);
         List<Callable<Void>> tasks = new ArrayList<>();
+        long submitted = lap;
 
-        for (Ghost g: ghosts) {
-            tasks.add(() -> {
-                updateGhost(g, dt);
-                return null;
-            });
-        }
-        try {
-            ghostExecutor.invokeAll(tasks);
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
+        if (coasting) {
+            // ghosts are independent, and a step this short is cheaper than a hand-off
+            for (Ghost g: ghosts) updateGhost(g, dt);
+        } else {
+            for (Ghost g: ghosts) {
+                tasks.add(() -> {
+                    if (Metrics.ENABLED) Metrics.ghostWait.record(System.nanoTime() - submitted);
+                    updateGhost(g, dt);
+                    return null;
+                });
+            }
+            try {
+                ghostExecutor.invokeAll(tasks);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
-        // collisions
-        for (Ghost g: ghosts){
+        if (Metrics.ENABLED) lap = Metrics.lap(Metrics.Phase.GHOSTS, lap);
+
+        // collisions, swept over the whole step so large dt cannot tunnel through;
+        // while coasting contactHorizon() has ruled them out
+        for (Ghost g: coasting ? Collections.<Ghost>emptyList() : ghosts){
 
             if (!g.alive){
                 continue;
             }
 
-            double dx = pac.x - g.x, dy = pac.y - g.y;
-            double dist = Math.hypot(dx,dy);
+            g.trail.add(dt, g.x, g.y);
+            double dist = Trail.closestApproach(pac.trail, g.trail);
 
             if (dist < (pac.radius + g.radius)*0.7){
                 if (g.vulnerable){
                     // eat ghost
-                    g.alive = false; g.respawnAt = System.currentTimeMillis()/1000.0 + 4.0;
+                    g.alive = false; g.respawnAt = simTime + 4.0;
+                    timers.schedule(g.respawnTimer, tickAt(g.respawnAt));
                     pac.score += 200;
-                    SoundManager.play(SoundManager.Effect.GHOST_EAT);
+                    emit(EventBus.Type.GHOST_EATEN, tileIndex(g.x), tileIndex(g.y), ghosts.indexOf(g));
                 } else {
                     // pac dies
                     pac.lives--;
-                    SoundManager.play(SoundManager.Effect.PAC_DIE);
+                    emit(EventBus.Type.PAC_DIED, tileIndex(pac.x), tileIndex(pac.y), ghosts.indexOf(g));
                     if (pac.lives <= 0) gameOver = true;
                     else resetPositions();
+                    // everyone was moved back home, the other trails are stale
+                    break;
                 }
             }
         }
 
         // victory if no pellets
-        boolean anyPel = false;
+        if (pelletIndex.remaining() == 0 && !gameOver){
+            gameOver = true;
+            emit(EventBus.Type.LEVEL_WON, -1, -1, -1);
+        }
+
+        if (gameOver && !scoreRecorded){
+            recordScore();
+            emit(EventBus.Type.GAME_OVER, -1, -1, -1);
+        }
+        if (Metrics.ENABLED) lap = Metrics.lap(Metrics.Phase.COLLISIONS, lap);
+
+        if (exporter != null && !replaying){
+            exporter.publish(this);
+        }
+
+        if (observer != null && !replaying){
+            try {
+                observer.observe(this);
+            } catch (IOException ex) {
+                System.err.println("Pixel observations stopped: " + ex.getMessage());
+                observer = null;
+            }
+        }
+
+        if (Metrics.ENABLED){
+            Metrics.lap(Metrics.Phase.EXPORT, lap);
+            Metrics.phases[Metrics.Phase.STEP.ordinal()].record(System.nanoTime() - start);
+            Metrics.ticks.increment();
+        }
+    }
+
+    /**
+     * Steps from now in which Pacman cannot reach any ghost, nobody can wrap
+     * through a tunnel and no timer fires. Those steps run ghosts inline and
+     * skip the collision sweep, with the same outcome as full steps; glide()
+     * runs the stretches of them in which nobody reaches a decision.
+     */
+    private int contactHorizon(){
+
+        long next = Long.MAX_VALUE;
+        for (TimerWheel.Timeout t : timeouts()){
+            if (t.isScheduled()) next = Math.min(next, t.deadline);
+        }
+
+        double pacStep = pac.speed * SIM_DT;
+        long h = Math.min(next - tickCount - 1, wrapHorizon(pac, pacStep));
+
+        for (Ghost g : ghosts){
+            if (!g.alive){
+                continue;
+            }
+            double ghostStep = Math.max(g.baseSpeed, g.vulnSpeed) * SIM_DT;
+            double gap = Math.hypot(pac.x - g.x, pac.y - g.y) - (pac.radius + g.radius) * 0.7 - HOUSE_WOBBLE;
+            h = Math.min(h, (long)Math.floor(gap / (pacStep + ghostStep)) - 1);
+            h = Math.min(h, wrapHorizon(g, ghostStep));
+        }
+        return (int)Math.max(0, Math.min(h, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Runs up to {@code steps} coasting steps at once while all anyone does is
+     * move: Pacman short of the next tile center's eating range, every ghost
+     * short of the junction at the end of its edge. Ghosts still turn the
+     * corners of their corridor on the way. Positions and the clock take the
+     * same additions per step as in updateGame(), so the outcome does not
+     * change; what goes is the per-step bookkeeping around them. Returns the
+     * steps run, 0 if somebody is about to act or frames are being recorded.
+     * Only with JUNCTION_TURNS: otherwise every ghost rolls for a turn on
+     * every step.
+     */
+    private int glide(int steps, double until){
+
+        if (!JUNCTION_TURNS || exporter != null || observer != null || pac.dir == null || pac.req != null){
+            return 0;
+        }
+        int px = tileIndex(pac.x), py = tileIndex(pac.y);
+        if (!inBounds(px, py) || pellets[px][py] || powers[px][py]
+                || (pac.atCenter() && autoTile != py * GRID_W + px) || collisionInDir(pac, pac.dir)){
+            return 0;
+        }
+        double pacStep = pac.speed * SIM_DT;
+        double pacAhead = centerAhead(pac);
+        int nx = tileIndex(pac.x + dx(pac.dir) * pacAhead), ny = tileIndex(pac.y + dy(pac.dir) * pacAhead);
+        if (inBounds(nx, ny) && (pellets[nx][ny] || powers[nx][ny])){
+            // the collection check eats within 6 pixels of a center
+            pacAhead -= 6;
+        }
+        long n = Math.min(steps, (long)Math.floor(pacAhead / pacStep) - 1);
+
+        for (Ghost g : ghosts){
+            if (!g.alive || g.inHouse || g.dir == null){
+                continue;
+            }
+            if (g.human || collisionInDir(g, g.dir)){
+                return 0;
+            }
+            g.speed = g.vulnerable ? g.vulnSpeed : g.baseSpeed;
+            double ahead = centerAhead(g);
+            int ux = tileIndex(g.x + dx(g.dir) * ahead), uy = tileIndex(g.y + dy(g.dir) * ahead);
+            if (!junctions.isNode(ux, uy)){
+                ahead += junctions.edgeLength(ux, uy, junctions.follow(ux, uy, g.dir)) * TILE;
+            }
+            n = Math.min(n, (long)Math.floor(ahead / (g.speed * SIM_DT)) - 1);
+        }
+        if (n < 2){
+            return 0;
+        }
 
-        for (int y=0;y<GRID_H;y++){
+        pac.facing = pac.dir;
+        alignCrossAxis(pac);
+        for (Ghost g : ghosts){
+            if (g.alive && !g.inHouse && g.dir != null) alignCrossAxis(g);
+        }
 
-            for (int x=0;x<GRID_W;x++){
+        int done = 0;
+        while (done < n && simTime < until){
+            coastTicks--;
+            coasted++;
+            simTime += SIM_DT;
+            tickCount++;
+            done++;
+
+            pac.mouth += SIM_DT * 4 * pac.mouthDir;
+            if (pac.mouth > 1) {
+                pac.mouth = 1; pac.mouthDir = -1;
+            }
+            if (pac.mouth < 0) {
+                pac.mouth = 0; pac.mouthDir = 1;
+            }
+            moveEntity(pac, pac.dir, pacStep);
 
-                if (pellets[x][y] || powers[x][y]){
-                    anyPel = true;
+            for (Ghost g : ghosts){
+                if (!g.alive || g.inHouse || g.dir == null){
+                    continue;
                 }
+                double step = g.speed * SIM_DT;
+                if (centerAhead(g) > step) moveEntity(g, g.dir, step);
+                else travel(g, SIM_DT, ghostCenterHook);   // a corner, or straight on
             }
         }
 
-        if (!anyPel){
-            gameOver = true;
+        timers.advance(tickCount);
+        for (Ghost g : ghosts){
+            if (g.alive && g.inHouse){
+                g.x = g.homeCenter.x + Math.sin(simTime * 2 + g.bouncePhase) * 4;
+                g.y = g.homeCenter.y + Math.cos(simTime * 3 + g.bouncePhase) * 1.5;
+            }
+        }
+        if (Metrics.ENABLED) Metrics.ticks.add(done);
+        return done;
+    }
+
+    /** How far {@code e} moves before travel() stops it on a tile center. */
+    private double centerAhead(Entity e){
+        double step = distanceToNextCenter(e);
+        return step == 0 && tileKey(e) == e.centerTile ? TILE : step;
+    }
+
+    /** Steps before {@code e} could reach a tunnel wrap point. */
+    private long wrapHorizon(Entity e, double step){
+        double room = Math.min(e.x + TILE / 2.0, SCREEN_W + TILE / 2.0 - e.x);
+        return (long)Math.floor(room / step) - 1;
+    }
+
+    /** First tick at or after simulation time {@code t}. */
+    private long tickAt(double t){
+        return (long)Math.ceil(t / SIM_DT - 1e-6);
+    }
+
+    private void endPower(){
+
+        for (Ghost g: ghosts) {
+            if (g.vulnerable && simTime >= g.vulnEnd - 1e-9) {
+                g.vulnerable = false; g.speed = g.baseSpeed;
+            }
+        }
+    }
+
+    private void respawnGhost(Ghost g){
+
+        g.alive = true;
+        Point c = gridCenterPoint(g.homeTile.x, g.homeTile.y);
+        g.x = c.x; g.y = c.y;
+        g.homeCenter = new Point(c.x, c.y);
+        g.dir = "U";
+        g.vulnerable = false;
+        g.vulnEnd = 0.0;
+        g.speed = g.baseSpeed;
+        g.inHouse = true;
+        scheduleGhostRelease(g, simTime + 3.0);
+    }
+
+    private void releaseGhost(Ghost g){
+
+        if (!g.alive || !g.inHouse){
+            return;
+        }
+        g.inHouse = false;
+        g.dir = "U";
+        g.x = g.homeCenter.x;
+        g.y = g.homeCenter.y - g.radius;
+    }
+
+    private void collectAt(int tx, int ty){
+
+        if (Metrics.ENABLED && !replaying && (pellets[tx][ty] || powers[tx][ty])){
+            Metrics.pellets.increment();
         }
 
-        // end vulnerability
-        if (!pac.isPowered()) {
+        if (pellets[tx][ty]) {
+            pellets[tx][ty] = false; pac.score += 10;
+            pelletIndex.remove(tx, ty);
+            logEaten(tx, ty);
+            emit(EventBus.Type.PELLET, tx, ty, -1);
+        } else if (powers[tx][ty]) {
+            powers[tx][ty] = false; pac.score += 50;
+            pelletIndex.remove(tx, ty);
+            logEaten(tx, ty);
+            pac.poweredUntil = simTime + POWER_TIME;
             for (Ghost g: ghosts) {
-                if (g.vulnerable && System.currentTimeMillis()/1000.0 >= g.vulnEnd) {
-                    g.vulnerable = false; g.speed = g.baseSpeed;
-                }
+                g.vulnerable = true; g.vulnEnd = pac.poweredUntil; g.speed = g.vulnSpeed;
+            }
+            timers.schedule(powerTimer, tickAt(pac.poweredUntil));
+            coastTicks = 0;
+            emit(EventBus.Type.POWER, tx, ty, -1);
+        }
+    }
+
+    private void recordScore(){
+
+        scoreRecorded = true;
+        if (recording != null) saveReplay();
+        if (Metrics.ENABLED) Metrics.gameFinished(pac.score);
+        Leaderboard board = Leaderboard.shared();
+
+        if (board == null){
+            return;
+        }
+
+        board.append(System.currentTimeMillis(), seed, MAP_HASH, pac.score, pac.lives, pac.lives > 0);
+        bestForMap = board.bestForMap(MAP_HASH);
+        percentile = board.percentileRank(pac.score);
+    }
+
+    /** Starts recording key presses if -Dpacman.record is set; {@code suffix} tells batch games apart. */
+    private void recordInputs(String suffix){
+
+        recording = Replay.recording(suffix, seed, autopilot);
+        if (recording != null){
+            // the wall-clock AI budget would make ghosts decide differently on playback
+            aiScheduler = new AiScheduler(0, 0);
+        }
+    }
+
+    private void saveReplay(){
+        recording.ticks = tickCount;
+        recording.score = pac.score;
+        recording.save();
+    }
+
+    static long mapHash(String[] raw){
+
+        // FNV-1a over the rows, with a separator so row boundaries count
+        long h = 0xcbf29ce484222325L;
+
+        for (String row : raw){
+            for (int i = 0; i < row.length(); i++){
+                h ^= row.charAt(i);
+                h *= 0x100000001b3L;
             }
+            h ^= '\n';
+            h *= 0x100000001b3L;
         }
+        return h;
     }
 
     private void updatePac(double dt){
@@ -489,9 +1256,16 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
             pac.mouth = 0; pac.mouthDir = 1;
         }
 
+        pac.trail.reset(pac.x, pac.y);
+
+        if (autopilot){
+            steerAutopilot();
+        }
+
         // try to turn if requested and possible
         if (pac.req != null){
             if ((pac.dir == null || pac.atCenter()) && !collisionInDir(pac, pac.req)){
+                if (pac.atCenter()) snapToCenter(pac);
                 pac.dir = pac.req;
                 pac.req = null;
             }
@@ -499,376 +1273,4195 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         // move in dir
         if (pac.dir != null){
             if (!collisionInDir(pac, pac.dir)){
-                moveEntity(pac, pac.dir, pac.speed, dt);
                 pac.facing = pac.dir;
-            } else if (pac.atCenter()) {
-                pac.dir = null;
+                travel(pac, dt, pacCenterHook);
+                if (pac.dir != null) pac.facing = pac.dir;
             } else {
-                Point t = pac.tile();
-                if (inBounds(t.x, t.y)) {
-                    Point c = gridCenter(t.x,t.y);
-                    pac.x = c.x; pac.y = c.y;
-                }
+                snapToCenter(pac);
                 pac.dir = null;
             }
         }
+        pac.trail.add(dt, pac.x, pac.y);
     }
 
-    private void updateGhost(Ghost g, double dt){
+    private void pacAtCenter(Entity e){
 
-        double now = System.currentTimeMillis()/1000.0;
+        Point t = e.tile();
 
-        if (!g.alive){
-            if (now >= g.respawnAt) {
-                g.alive = true;
-                Point c = gridCenterPoint(g.homeTile.x, g.homeTile.y);
-                g.x = c.x; g.y = c.y;
-                g.homeCenter = new Point(c.x, c.y);
-                g.dir = "U";
-                g.vulnerable = false;
-                g.vulnEnd = 0.0;
-                g.speed = g.baseSpeed;
-                g.inHouse = true;
-                scheduleGhostRelease(g, now + 3.0);
-            } else return;
+        if (!inBounds(t.x, t.y)){
+            return;
         }
 
-        if (g.inHouse) {
-            g.x = g.homeCenter.x + Math.sin(now * 2 + g.bouncePhase) * 4;
-            g.y = g.homeCenter.y + Math.cos(now * 3 + g.bouncePhase) * 1.5;
-            if (now >= g.releaseAt) {
-                g.inHouse = false;
-                g.dir = "U";
-                g.x = g.homeCenter.x;
-                g.y = g.homeCenter.y - g.radius;
-            } else {
-                return;
-            }
+        collectAt(t.x, t.y);
+
+        if (autopilot){
+            steerAutopilot();
         }
 
-        // vulnerability timer
-        if (g.vulnerable && now >= g.vulnEnd){
-            g.vulnerable = false; g.speed = g.baseSpeed;
+        if (pac.req != null && !collisionInDir(pac, pac.req)){
+            pac.dir = pac.req;
+            pac.req = null;
         }
-        g.speed = g.vulnerable ? g.vulnSpeed : g.baseSpeed;
 
-        if (g.atCenter()){
-            Point t = g.tile();
-            List<String> choices = new ArrayList<>();
-            String[] D = {"L","R","U","D"};
+        if (collisionInDir(pac, pac.dir)){
+            pac.dir = null;
+        }
+    }
 
-            for (String d: D){
-                int nx = t.x + dx(d), ny = t.y + dy(d);
-                if (!isWall(nx, ny)) choices.add(d);
-            }
-            if (!choices.isEmpty()){
-                if (choices.size() > 1 && opposite(g.dir) != null && choices.contains(opposite(g.dir))){
-                    choices.remove(opposite(g.dir));
-                }
-                String selected = choices.get(g.rnd.nextInt(choices.size()));
-                if (g.vulnerable) {
-                    selected = chooseByDistance(choices, t, pac.tile(), true);
-                } else {
-                    Point target = pac.tile();
-                    if (g.difficulty.predictionTiles > 0) {
-                        target = pacFutureTile(g.difficulty.predictionTiles);
+    private void steerAutopilot(){
+
+        Point t = pac.tile();
+
+        if (!inBounds(t.x, t.y) || (pac.dir != null && !pac.atCenter())){
+            return;
+        }
+
+        int key = t.y * GRID_W + t.x;
+
+        if (key == autoTile && pac.dir != null){
+            return;
+        }
+        autoTile = key;
+
+        // prefer corridors with food, then whatever leads closer to the nearest food;
+        // never reverse unless it is a dead end
+        List<String> open = new ArrayList<>();
+        List<String> food = new ArrayList<>();
+        List<String> closer = new ArrayList<>();
+        int here = pelletIndex.foodDistance(t.x, t.y);
+
+        for (String d : new String[]{"L","R","U","D"}){
+            int nx = t.x + dx(d), ny = t.y + dy(d);
+            if (isWall(nx, ny) || d.equals(opposite(pac.dir))) continue;
+            if (!inBounds(nx, ny) && !isTunnelRow(t.y)) continue;
+            open.add(d);
+            if (!inBounds(nx, ny)) continue;
+            if (pellets[nx][ny] || powers[nx][ny]) food.add(d);
+            if (pelletIndex.foodDistance(nx, ny) < here) closer.add(d);
+        }
+
+        List<String> pick = !food.isEmpty() ? food : !closer.isEmpty() ? closer : open;
+
+        if (pick.isEmpty()){
+            pac.req = opposite(pac.dir);
+        } else {
+            pac.req = pick.get(autoRnd.nextInt(pick.size()));
+        }
+    }
+
+    private void updateGhost(Ghost g, double dt){
+
+        double now = simTime;
+        g.trail.reset(g.x, g.y);
+
+        // respawn and release are timers, see respawnGhost/releaseGhost
+        if (!g.alive){
+            return;
+        }
+
+        if (g.inHouse) {
+            g.x = g.homeCenter.x + Math.sin(now * 2 + g.bouncePhase) * 4;
+            g.y = g.homeCenter.y + Math.cos(now * 3 + g.bouncePhase) * 1.5;
+            return;
+        }
+
+        g.speed = g.vulnerable ? g.vulnSpeed : g.baseSpeed;
+
+        if (g.human){
+            // steered like Pacman: turn at a center, reverse anywhere
+            if (g.req != null && (g.req.equals(opposite(g.dir)) || g.dir == null || g.atCenter())
+                    && !collisionInDir(g, g.req)){
+                if (g.atCenter()) snapToCenter(g);
+                g.dir = g.req;
+                g.req = null;
+            }
+        } else if (!JUNCTION_TURNS && g.rnd.nextDouble() < g.difficulty.randomTurnChance * 0.5){
+            g.dir = g.randomDir();
+        }
+
+        // align if blocked, then leave by an open exit; travel() does not check the first step
+        if (g.dir != null && collisionInDir(g, g.dir)){
+            snapToCenter(g);
+            int tx = tileIndex(g.x), ty = tileIndex(g.y);
+            g.dir = g.human || !inBounds(tx, ty) ? null : junctions.randomExit(tx, ty, g.rnd);
+            if (g.dir == null) return;
+        }
+
+        // move, deciding at every tile center crossed on the way
+        travel(g, dt, ghostCenterHook);
+    }
+
+    private void ghostAtCenter(Ghost g){
+
+        if (!inBounds(tileIndex(g.x), tileIndex(g.y))) return;
+        if (g.human) {
+            if (g.req != null && !collisionInDir(g, g.req)) {
+                g.dir = g.req;
+                g.req = null;
+            }
+            if (collisionInDir(g, g.dir)) g.dir = null;
+            return;
+        }
+        if (!junctions.isNode(tileIndex(g.x), tileIndex(g.y))) {
+            // straight or a corner: the only way on that is not back
+            g.dir = junctions.follow(tileIndex(g.x), tileIndex(g.y), g.dir);
+            return;
+        }
+        if (JUNCTION_TURNS && g.rnd.nextDouble() < g.difficulty.randomTurnChance * 0.5) {
+            // the odd aimless turn, going back included; costs no AI budget
+            g.dir = junctions.randomExit(tileIndex(g.x), tileIndex(g.y), g.rnd);
+            return;
+        }
+        if (aiScheduler.tryAcquire(g)) {
+            long t0 = System.nanoTime();
+            decideGhostDir(g);
+            g.lastDecision = g.dir;
+            aiScheduler.release(System.nanoTime() - t0);
+        } else {
+            fallbackGhostDir(g);
+        }
+    }
+
+    /** Cheap stand-in when the AI budget is spent: keep going, else repeat the last choice. */
+    private void fallbackGhostDir(Ghost g){
+
+        if (g.dir != null && !collisionInDir(g, g.dir)){
+            return;
+        }
+
+        if (g.lastDecision != null && !collisionInDir(g, g.lastDecision)){
+            g.dir = g.lastDecision;
+            return;
+        }
+
+        String back = opposite(g.dir);
+        for (String d : new String[]{"L","R","U","D"}){
+            if (!d.equals(back) && !collisionInDir(g, d)){
+                g.dir = d;
+                return;
+            }
+        }
+        g.dir = back;
+    }
+
+    private void decideGhostDir(Ghost g){
+
+        Point t = g.tile();
+        List<String> choices = new ArrayList<>();
+        String[] D = {"L","R","U","D"};
+
+        for (String d: D){
+            int nx = t.x + dx(d), ny = t.y + dy(d);
+            if (!isWall(nx, ny)) choices.add(d);
+        }
+        if (!choices.isEmpty()){
+            if (choices.size() > 1 && opposite(g.dir) != null && choices.contains(opposite(g.dir))){
+                choices.remove(opposite(g.dir));
+            }
+            String selected = choices.get(g.rnd.nextInt(choices.size()));
+            boolean seen = !PERCEPTION || spotPac(g, t);
+            if (g.vulnerable) {
+                // run from Pacman, or from where he was last seen; with neither, wander
+                if (seen) {
+                    selected = chooseByDistance(choices, t, pac.tile(), true);
+                } else if (g.lastSeen >= 0 && simTime - g.lastSeenAt < SIGHT_MEMORY) {
+                    selected = chooseByDistance(choices, t, new Point(g.lastSeen % GRID_W, g.lastSeen / GRID_W), true);
+                }
+            } else if (!seen) {
+                if (g.rnd.nextDouble() < g.difficulty.chaseBias) {
+                    selected = chooseByDistance(choices, t, searchTarget(g, t), false);
+                }
+            } else {
+                Point target = pac.tile();
+                if (g.difficulty.predictionTiles > 0) {
+                    target = pacFutureTile(g.difficulty.predictionTiles);
+                }
+                if (g.difficulty == Ghost.Difficulty.INSANE) {
+                    target = smartRedTarget();
+                }
+                if (g.rnd.nextDouble() < g.difficulty.chaseBias) {
+                    selected = chooseByDistance(choices, t, target, false);
+                }
+            }
+            if (g.rnd.nextDouble() < g.difficulty.randomTurnChance) {
+                selected = choices.get(g.rnd.nextInt(choices.size()));
+            }
+            g.dir = selected;
+        }
+    }
+
+    /** True if {@code g} sees Pacman from tile {@code t}; remembers where. */
+    private boolean spotPac(Ghost g, Point t){
+
+        Point p = pac.tile();
+
+        if (sightlines.sees(t.x, t.y, p.x, p.y)){
+            g.lastSeen = p.y * GRID_W + p.x;
+            g.lastSeenAt = simTime;
+            return true;
+        }
+        return false;
+    }
+
+    /** Where a ghost that cannot see Pacman goes: the last sighting while fresh, else its patrol corner. */
+    private Point searchTarget(Ghost g, Point t){
+
+        int here = t.y * GRID_W + t.x;
+
+        if (g.lastSeen >= 0 && g.lastSeen != here && simTime - g.lastSeenAt < SIGHT_MEMORY){
+            return new Point(g.lastSeen % GRID_W, g.lastSeen / GRID_W);
+        }
+        g.lastSeen = -1;
+
+        Point corner = patrolCorners[g.patrol];
+        if (Math.abs(corner.x - t.x) + Math.abs(corner.y - t.y) <= 1){
+            g.patrol = (g.patrol + 1) % patrolCorners.length;
+            corner = patrolCorners[g.patrol];
+        }
+        return corner;
+    }
+
+    /**
+     * Hashed timer wheel over simulation ticks. Every timed piece of game state
+     * (power expiry, ghost respawn, house release) is a preallocated Timeout
+     * re-armed with schedule(); schedule and cancel are O(1) list operations.
+     * advance() runs on the tick thread and fires due timeouts in deadline
+     * order, FIFO within a tick, so runs are deterministic. Driven by
+     * tickCount, it stands still while the game is paused.
+     */
+    static final class TimerWheel {
+        static final class Timeout {
+            final Runnable task;
+            long deadline;
+            long seq;                // scheduling order, breaks ties between equal deadlines
+            int bucket = -1;
+            Timeout prev, next;
+
+            Timeout(Runnable task) {
+                this.task = task;
+            }
+
+            boolean isScheduled() { return bucket >= 0; }
+        }
+
+        private final Timeout[] heads, tails;
+        private final int mask;
+        private long current = 0;    // last tick processed
+        private long nextSeq = 0;
+        private int pending = 0;
+
+        TimerWheel(int slotsPow2) {
+            int slots = Integer.highestOneBit(Math.max(2, slotsPow2));
+            heads = new Timeout[slots];
+            tails = new Timeout[slots];
+            mask = slots - 1;
+        }
+
+        /** (Re)arms {@code t} to fire at {@code tick}; past deadlines fire on the next tick. */
+        void schedule(Timeout t, long tick) {
+
+            cancel(t);
+            t.seq = nextSeq++;
+            link(t, Math.max(tick, current + 1));
+        }
+
+        private void link(Timeout t, long deadline) {
+
+            t.deadline = deadline;
+            int b = (int)(deadline & mask);
+            t.bucket = b;
+            t.prev = tails[b];
+            t.next = null;
+            if (tails[b] == null) heads[b] = t; else tails[b].next = t;
+            tails[b] = t;
+            pending++;
+        }
+
+        void cancel(Timeout t) {
+
+            if (!t.isScheduled()) {
+                return;
+            }
+
+            int b = t.bucket;
+            if (t.prev == null) heads[b] = t.next; else t.prev.next = t.next;
+            if (t.next == null) tails[b] = t.prev; else t.next.prev = t.prev;
+            t.prev = t.next = null;
+            t.bucket = -1;
+            pending--;
+        }
+
+        /** Fires everything due up to and including {@code tick}. */
+        void advance(long tick) {
+
+            while (current < tick) {
+                if (pending == 0) {
+                    current = tick;
+                    return;
+                }
+
+                current++;
+                int b = (int)(current & mask);
+                Timeout t = heads[b];
+
+                while (t != null) {
+                    if (t.deadline <= current) {
+                        cancel(t);
+                        t.task.run();
+                        // the task may have cancelled or added timeouts here, rescan
+                        t = heads[b];
+                    } else {
+                        t = t.next;
+                    }
+                }
+            }
+        }
+
+        /** Forgets every timeout and restarts the clock at {@code tick}. */
+        void clear(long tick) {
+
+            for (int b = 0; b <= mask; b++) {
+                while (heads[b] != null) cancel(heads[b]);
+            }
+            current = tick;
+        }
+
+        long current() { return current; }
+
+        long nextSeq() { return nextSeq; }
+
+        /**
+         * Puts the wheel back into a saved state: {@code deadlines[i]} is the
+         * deadline of {@code ts[i]}, or -1 if it was idle. Relinking in the
+         * saved scheduling order keeps the fire order identical.
+         */
+        void restore(Timeout[] ts, long[] deadlines, long[] seqs, long tick, long seq) {
+
+            clear(tick);
+            long last = Long.MIN_VALUE;
+
+            while (true) {
+                int pick = -1;
+                for (int i = 0; i < ts.length; i++) {
+                    if (deadlines[i] >= 0 && seqs[i] > last && (pick < 0 || seqs[i] < seqs[pick])) pick = i;
+                }
+                if (pick < 0) break;
+                ts[pick].seq = seqs[pick];
+                link(ts[pick], deadlines[pick]);
+                last = seqs[pick];
+            }
+            nextSeq = seq;
+        }
+    }
+
+    /**
+     * java.util.Random with the same sequence but a readable state, so a
+     * rollback can rewind ghost randomness along with everything else.
+     */
+    static final class StateRandom extends Random {
+        private static final long MULT = 0x5DEECE66DL, ADD = 0xBL, MASK = (1L << 48) - 1;
+        private long state;
+
+        StateRandom(long seed) {
+            state = (seed ^ MULT) & MASK;
+        }
+
+        @Override
+        protected int next(int bits) {
+            state = (state * MULT + ADD) & MASK;
+            return (int)(state >>> (48 - bits));
+        }
+
+        long state() { return state; }
+
+        void state(long s) { state = s; }
+    }
+
+    /**
+     * Everything the next step reads, copied into preallocated arrays so a
+     * rollback can keep one per tick without allocating. Listeners, exporter
+     * and the score file are side effects and stay outside.
+     */
+    static final class Snapshot {
+        double simTime, nextHouseReleaseTime;
+        long tickCount;
+        int releasesSinceReset, eatenCount;
+        boolean gameOver;
+        final boolean[] pellets = new boolean[GRID_W * GRID_H];
+        final boolean[] powers = new boolean[GRID_W * GRID_H];
+        final int[] eaten = new int[GRID_W * GRID_H];
+
+        double px, py, mouth, poweredUntil;
+        String pdir, preq, facing;
+        int mouthDir, lives, score, pcenter;
+
+        final double[] gx, gy, gspeed, vulnEnd, respawnAt, releaseAt;
+        final String[] gdir, greq, lastDecision;
+        final boolean[] alive, vulnerable, inHouse, starved;
+        final int[] gcenter, lastSeen, patrol;
+        final double[] lastSeenAt;
+        final long[] rnd;
+        long autoRnd;
+        int autoTile;
+
+        // power timer first, then respawn and release per ghost
+        final long[] deadline, seq;
+        long wheelTick, wheelSeq;
+
+        Snapshot(int ghosts) {
+            gx = new double[ghosts]; gy = new double[ghosts]; gspeed = new double[ghosts];
+            vulnEnd = new double[ghosts]; respawnAt = new double[ghosts]; releaseAt = new double[ghosts];
+            gdir = new String[ghosts]; greq = new String[ghosts]; lastDecision = new String[ghosts];
+            alive = new boolean[ghosts]; vulnerable = new boolean[ghosts];
+            inHouse = new boolean[ghosts]; starved = new boolean[ghosts];
+            gcenter = new int[ghosts]; lastSeen = new int[ghosts]; patrol = new int[ghosts];
+            lastSeenAt = new double[ghosts];
+            rnd = new long[ghosts];
+            deadline = new long[1 + 2 * ghosts];
+            seq = new long[1 + 2 * ghosts];
+        }
+
+        void save(PacmanClone game) {
+
+            simTime = game.simTime;
+            tickCount = game.tickCount;
+            gameOver = game.gameOver;
+            nextHouseReleaseTime = game.nextHouseReleaseTime;
+            releasesSinceReset = game.releasesSinceReset;
+            eatenCount = game.eatenCount;
+            System.arraycopy(game.eatenTiles, 0, eaten, 0, eatenCount);
+            for (int x = 0; x < GRID_W; x++) {
+                System.arraycopy(game.pellets[x], 0, pellets, x * GRID_H, GRID_H);
+                System.arraycopy(game.powers[x], 0, powers, x * GRID_H, GRID_H);
+            }
+
+            Pacman p = game.pac;
+            px = p.x; py = p.y; pdir = p.dir; preq = p.req; facing = p.facing;
+            mouth = p.mouth; mouthDir = p.mouthDir; lives = p.lives; score = p.score;
+            poweredUntil = p.poweredUntil; pcenter = p.centerTile;
+            autoRnd = game.autoRnd.state(); autoTile = game.autoTile;
+
+            for (int i = 0; i < gx.length; i++) {
+                Ghost g = game.ghosts.get(i);
+                gx[i] = g.x; gy[i] = g.y; gspeed[i] = g.speed; gdir[i] = g.dir; greq[i] = g.req;
+                vulnEnd[i] = g.vulnEnd; respawnAt[i] = g.respawnAt; releaseAt[i] = g.releaseAt;
+                alive[i] = g.alive; vulnerable[i] = g.vulnerable; inHouse[i] = g.inHouse;
+                lastDecision[i] = g.lastDecision; starved[i] = g.starved; gcenter[i] = g.centerTile;
+                lastSeen[i] = g.lastSeen; lastSeenAt[i] = g.lastSeenAt; patrol[i] = g.patrol;
+                rnd[i] = g.rnd.state();
+            }
+
+            TimerWheel.Timeout[] ts = game.timeouts();
+            for (int i = 0; i < ts.length; i++) {
+                deadline[i] = ts[i].isScheduled() ? ts[i].deadline : -1;
+                seq[i] = ts[i].seq;
+            }
+            wheelTick = game.timers.current();
+            wheelSeq = game.timers.nextSeq();
+        }
+
+        void restore(PacmanClone game) {
+
+            boolean foodChanged = game.eatenCount != eatenCount;
+            game.simTime = simTime;
+            game.tickCount = tickCount;
+            game.gameOver = gameOver;
+            game.nextHouseReleaseTime = nextHouseReleaseTime;
+            game.releasesSinceReset = releasesSinceReset;
+            game.eatenCount = eatenCount;
+            if (game.eatenTiles.length < eatenCount) {
+                game.eatenTiles = Arrays.copyOf(game.eatenTiles, eaten.length);
+            }
+            System.arraycopy(eaten, 0, game.eatenTiles, 0, eatenCount);
+            for (int x = 0; x < GRID_W; x++) {
+                System.arraycopy(pellets, x * GRID_H, game.pellets[x], 0, GRID_H);
+                System.arraycopy(powers, x * GRID_H, game.powers[x], 0, GRID_H);
+            }
+            if (foodChanged) {
+                game.pelletIndex.reload(game.pellets, game.powers);
+            }
+
+            Pacman p = game.pac;
+            p.x = px; p.y = py; p.dir = pdir; p.req = preq; p.facing = facing;
+            p.mouth = mouth; p.mouthDir = mouthDir; p.lives = lives; p.score = score;
+            p.poweredUntil = poweredUntil; p.centerTile = pcenter;
+            game.autoRnd.state(autoRnd); game.autoTile = autoTile;
+
+            for (int i = 0; i < gx.length; i++) {
+                Ghost g = game.ghosts.get(i);
+                g.x = gx[i]; g.y = gy[i]; g.speed = gspeed[i]; g.dir = gdir[i]; g.req = greq[i];
+                g.vulnEnd = vulnEnd[i]; g.respawnAt = respawnAt[i]; g.releaseAt = releaseAt[i];
+                g.alive = alive[i]; g.vulnerable = vulnerable[i]; g.inHouse = inHouse[i];
+                g.lastDecision = lastDecision[i]; g.starved = starved[i]; g.centerTile = gcenter[i];
+                g.lastSeen = lastSeen[i]; g.lastSeenAt = lastSeenAt[i]; g.patrol = patrol[i];
+                g.rnd.state(rnd[i]);
+            }
+
+            game.timers.restore(game.timeouts(), deadline, seq, wheelTick, wheelSeq);
+        }
+
+        /** Fingerprint of the saved state, compared between peers to catch desyncs. */
+        long hash() {
+
+            long h = mix(0xcbf29ce484222325L, tickCount);
+            h = mix(h, Double.doubleToLongBits(px));
+            h = mix(h, Double.doubleToLongBits(py));
+            h = mix(h, score * 31L + lives);
+            h = mix(h, eatenCount);
+            for (int i = 0; i < gx.length; i++) {
+                h = mix(h, Double.doubleToLongBits(gx[i]));
+                h = mix(h, Double.doubleToLongBits(gy[i]));
+                h = mix(h, rnd[i]);
+                h = mix(h, lastSeen[i] * 4L + patrol[i]);
+                h = mix(h, (alive[i] ? 1 : 0) | (vulnerable[i] ? 2 : 0) | (inHouse[i] ? 4 : 0));
+            }
+            return h;
+        }
+
+        private static long mix(long h, long v) {
+            h ^= v;
+            h *= 0x100000001b3L;
+            return h ^ (h >>> 29);
+        }
+    }
+
+    /** Every timeout the game owns, in the order Snapshot stores them. */
+    private TimerWheel.Timeout[] timeouts(){
+
+        if (allTimeouts == null){
+            allTimeouts = new TimerWheel.Timeout[1 + 2 * ghosts.size()];
+            allTimeouts[0] = powerTimer;
+            for (int i = 0; i < ghosts.size(); i++){
+                allTimeouts[1 + 2 * i] = ghosts.get(i).respawnTimer;
+                allTimeouts[2 + 2 * i] = ghosts.get(i).releaseTimer;
+            }
+        }
+        return allTimeouts;
+    }
+
+    /**
+     * One side of a two-player game: this process steers Pacman or ghost 0
+     * and the peer the other, over UDP. Both run the same seeded simulation.
+     *
+     * Each side steps ahead guessing the peer pressed nothing. When the real
+     * input for an earlier tick arrives and differs from the guess, the
+     * snapshot taken before that tick is restored and the ticks since are
+     * re-simulated within the same frame. Key presses take effect
+     * INPUT_DELAY ticks late, which hides small latencies without any
+     * rollback; a side that gets MAX_ROLLBACK ticks ahead of its peer's
+     * inputs waits instead of guessing further.
+     *
+     * Packets carry every input the peer has not acknowledged yet, so a lost
+     * datagram only delays a correction. They also carry a state hash for the
+     * newest tick both inputs are known for, which the peer checks.
+     */
+    static final class Versus {
+        static final int RING = 64;
+        static final int MAX_ROLLBACK = 12;
+        static final int INPUT_DELAY = 2;
+        static final int MAX_SEND = 48;
+        static final int MAGIC = 0x50564d31;
+        static final long DEFAULT_SEED = 0x7061636d616eL;   // both sides need the same one, see -Dpacman.seed
+        private static final int MASK = RING - 1;
+        private static final String[] DIRS = {null, "L", "R", "U", "D"};
+
+        final PacmanClone game;
+        final boolean pacSide;
+        final Link link;
+        private final Snapshot[] snaps = new Snapshot[RING];
+        private final long[] hashes = new long[RING];
+        private final byte[] localIn = new byte[RING];
+        private final byte[] remoteIn = new byte[RING];
+        private final long[] remoteTick = new long[RING];   // tick remoteIn[i] belongs to, -1 if none
+        private final byte[] guessed = new byte[RING];      // remote input each simulated tick used
+        private final ByteBuffer out = ByteBuffer.allocate(64 + MAX_SEND);
+        private final Snapshot probe;
+
+        private long tick = 0;                   // last simulated tick
+        private long remoteUpTo = INPUT_DELAY;   // peer inputs known for every tick up to here
+        private long peerAck = INPUT_DELAY;      // peer knows our inputs up to here
+        private long rollbackFrom = Long.MAX_VALUE;
+        private long limit = Long.MAX_VALUE;
+        private boolean connected = false;
+        private byte pending = 0;
+        private double accumulator = 0.0;
+
+        long rollbacks, rollbackFrames, stalls, desyncs, checked;
+        int maxDepth;
+
+        Versus(PacmanClone game, boolean pacSide, Link link) {
+
+            this.game = game;
+            this.pacSide = pacSide;
+            this.link = link;
+            // the score file and wall-clock AI budget differ between the two machines
+            game.scoreRecorded = true;
+            game.aiScheduler = new AiScheduler(0, 0);
+            game.ghosts.get(0).human = true;
+            for (int i = 0; i < RING; i++) {
+                snaps[i] = new Snapshot(game.ghosts.size());
+            }
+            probe = new Snapshot(game.ghosts.size());
+            Arrays.fill(remoteTick, -1);
+        }
+
+        /** Local key press, applied INPUT_DELAY ticks after the next one. */
+        void press(String dir) {
+            pending = code(dir);
+        }
+
+        /** Stops simulating after {@code ticks}, so scripted runs end on the same tick. */
+        void stopAt(long ticks) {
+            limit = ticks;
+        }
+
+        void frame(double realDt) {
+
+            receive();
+
+            if (connected) {
+                if (rollbackFrom <= tick) {
+                    resimulate(rollbackFrom);
+                }
+                rollbackFrom = Long.MAX_VALUE;
+
+                accumulator = Math.min(accumulator + realDt, MAX_BACKLOG);
+                while (accumulator >= SIM_DT && !game.gameOver && tick < limit) {
+                    if (tick + 1 - remoteUpTo > MAX_ROLLBACK) {
+                        stalls++;
+                        if (Metrics.ENABLED) Metrics.stalls.increment();
+                        break;
+                    }
+                    long n = tick + 1;
+                    localIn[(int)(n + INPUT_DELAY) & MASK] = pending;
+                    pending = 0;
+                    step(n);
+                    tick = n;
+                    accumulator -= SIM_DT;
+                }
+            }
+
+            send();
+            link.flush();
+        }
+
+        private void step(long n) {
+
+            int slot = (int)n & MASK;
+            snaps[slot].save(game);
+            hashes[slot] = snaps[slot].hash();
+
+            byte remote = remoteTick[slot] == n ? remoteIn[slot] : 0;
+            guessed[slot] = remote;
+            byte pacIn = pacSide ? localIn[slot] : remote;
+            byte ghostIn = pacSide ? remote : localIn[slot];
+            if (pacIn != 0) game.pac.req = DIRS[pacIn];
+            if (ghostIn != 0) game.ghosts.get(0).req = DIRS[ghostIn];
+
+            game.updateGame(SIM_DT);
+        }
+
+        private void resimulate(long from) {
+
+            int depth = (int)(tick - from + 1);
+            snaps[(int)from & MASK].restore(game);
+            if (game.exporter != null) game.exporter.rewound();
+            game.replaying = true;
+            try {
+                for (long n = from; n <= tick; n++) {
+                    step(n);
+                }
+            } finally {
+                game.replaying = false;
+            }
+            rollbacks++;
+            rollbackFrames += depth;
+            if (Metrics.ENABLED){
+                Metrics.rollbacks.increment();
+                Metrics.rollbackFrames.add(depth);
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void receive() {
+
+            ByteBuffer in;
+
+            while ((in = link.receive()) != null) {
+                if (in.remaining() < 46 || in.getInt() != MAGIC || in.getLong() != game.seed) {
+                    continue;
+                }
+                connected = true;
+                peerAck = Math.max(peerAck, in.getLong());
+                long first = in.getLong();
+                int count = in.getShort();
+                if (in.remaining() < count + 16) {
+                    continue;
+                }
+
+                for (int i = 0; i < count; i++) {
+                    long t = first + i;
+                    byte v = in.get();
+                    // older ticks are settled, much newer ones do not fit the ring yet
+                    if (t <= remoteUpTo || t > tick + RING - MAX_ROLLBACK) continue;
+                    int slot = (int)t & MASK;
+                    remoteIn[slot] = v;
+                    remoteTick[slot] = t;
+                    if (t <= tick && guessed[slot] != v) {
+                        rollbackFrom = Math.min(rollbackFrom, t);
+                    }
+                }
+                while (remoteTick[(int)(remoteUpTo + 1) & MASK] == remoteUpTo + 1) {
+                    remoteUpTo++;
+                }
+
+                long checkTick = in.getLong();
+                long checkHash = in.getLong();
+                verify(checkTick, checkHash);
+            }
+        }
+
+        private void verify(long n, long hash) {
+
+            // ours is final only once a pending rollback cannot touch it any more
+            int slot = (int)n & MASK;
+            if (n < 1 || n > tick || n - 1 > remoteUpTo || n >= rollbackFrom || tick - n >= RING - 1) {
+                return;
+            }
+            if (snaps[slot].tickCount != n - 1) {
+                return;
+            }
+            checked++;
+            if (hashes[slot] != hash) {
+                desyncs++;
+            }
+            if (Metrics.ENABLED){
+                // checks before failures; scrape reads them the other way round
+                Metrics.stateChecks.increment();
+                if (hashes[slot] != hash) Metrics.desyncs.increment();
+            }
+        }
+
+        private void send() {
+
+            long first = peerAck + 1;
+            long last = Math.min(tick + INPUT_DELAY, first + MAX_SEND - 1);
+            int count = (int)Math.max(0, last - first + 1);
+            long check = Math.min(tick, remoteUpTo + 1);
+
+            out.clear();
+            out.putInt(MAGIC).putLong(game.seed).putLong(remoteUpTo).putLong(first).putShort((short)count);
+            for (long t = first; t <= last; t++) {
+                out.put(localIn[(int)t & MASK]);
+            }
+            out.putLong(check).putLong(check >= 1 ? hashes[(int)check & MASK] : 0L);
+            out.flip();
+            link.send(out);
+        }
+
+        /** True once both sides stopped and every input up to the end is known. */
+        boolean settled() {
+            return connected && (tick >= limit || game.gameOver) && remoteUpTo >= tick && rollbackFrom > tick;
+        }
+
+        long stateHash() {
+            probe.save(game);
+            return probe.hash();
+        }
+
+        String status() {
+
+            if (!connected) {
+                return "Waiting for the other player on port " + link.localPort();
+            }
+            return String.format("%s | rollbacks %d (%d frames, max %d) | stalls %d%s",
+                    pacSide ? "Pacman" : "Ghost", rollbacks, rollbackFrames, maxDepth, stalls,
+                    desyncs > 0 ? " | DESYNC" : "");
+        }
+
+        String summary() {
+            return String.format("versus %s: %d ticks, %d rollbacks, %d rollback frames (max %d), %d stalls, "
+                            + "%d/%d checks failed, %d/%d packets dropped, score %d, state %016x",
+                    pacSide ? "pac" : "ghost", tick, rollbacks, rollbackFrames, maxDepth, stalls,
+                    desyncs, checked, link.dropped, link.sent, game.pac.score, stateHash());
+        }
+
+        private static byte code(String dir) {
+            for (byte i = 1; i < DIRS.length; i++) {
+                if (DIRS[i].equals(dir)) return i;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Loopback UDP with an optional latency and loss shim on the sending
+     * side, so a versus session can be tried with two local processes.
+     */
+    static final class Link implements Closeable {
+        private final DatagramChannel channel;
+        private final InetSocketAddress peer;
+        private final long latencyNanos;
+        private final double loss;
+        private final Random shim = new Random();
+        private final ArrayDeque<byte[]> queued = new ArrayDeque<>();
+        private final ArrayDeque<Long> due = new ArrayDeque<>();
+        private final ByteBuffer in = ByteBuffer.allocate(2048);
+        long sent, dropped;
+
+        Link(int localPort, int remotePort, long latencyMillis, double lossPercent) throws IOException {
+
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(loopback, localPort));
+            channel.configureBlocking(false);
+            peer = new InetSocketAddress(loopback, remotePort);
+            latencyNanos = latencyMillis * 1_000_000L;
+            loss = lossPercent / 100.0;
+        }
+
+        int localPort() {
+            return channel.socket().getLocalPort();
+        }
+
+        void send(ByteBuffer data) {
+
+            sent++;
+            if (shim.nextDouble() < loss) {
+                dropped++;
+                return;
+            }
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            queued.add(copy);
+            due.add(System.nanoTime() + latencyNanos);
+            flush();
+        }
+
+        /** Sends whatever the simulated latency has released. */
+        void flush() {
+
+            long now = System.nanoTime();
+
+            while (!queued.isEmpty() && due.peek() <= now) {
+                due.poll();
+                try {
+                    channel.send(ByteBuffer.wrap(queued.poll()), peer);
+                } catch (IOException ex) {
+                    // nobody listening yet; inputs are resent until acknowledged
+                }
+            }
+        }
+
+        /** Next datagram, or null if none is waiting. The buffer is reused. */
+        ByteBuffer receive() {
+
+            try {
+                in.clear();
+                if (channel.receive(in) == null) {
+                    return null;
+                }
+                in.flip();
+                return in;
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Per-tick budget for ghost junction decisions, shared by the ghost threads.
+     * A ghost that misses its slot falls back to a cached direction and is let
+     * through at its next junction regardless of budget, so no ghost starves
+     * and the overrun is at most one decision per ghost.
+     *
+     * The decision cap (-Dpacman.aiDecisionsPerTick) is handed out on the tick
+     * thread before the ghosts run: cap ghosts get a slot, round robin from a
+     * start that moves on by the cap every tick. Which ghost decides never
+     * depends on thread timing, so seeded games stay reproducible; a slot
+     * that no junction uses that tick is lost. The wall-clock budget (-Dpacman.aiBudgetMicros)
+     * makes which ghosts degrade depend on machine load, so it is off unless
+     * asked for. 0 means unlimited for both.
+     */
+    static final class AiScheduler {
+        private final long budgetNanos;
+        private final int maxDecisions;
+        private final AtomicLong spent = new AtomicLong();
+        private final LongAdder decisions = new LongAdder();
+        private final LongAdder degraded = new LongAdder();
+
+        AiScheduler(long budgetNanos, int maxDecisions) {
+            this.budgetNanos = budgetNanos;
+            this.maxDecisions = maxDecisions;
+        }
+
+        /** Runs on the tick thread before any ghost moves. */
+        void beginTick(long tick, List<Ghost> ghosts) {
+            spent.set(0);
+            int n = ghosts.size();
+            for (int i = 0; i < n; i++) {
+                ghosts.get(i).aiSlot = maxDecisions <= 0 || Math.floorMod(i - tick * maxDecisions, n) < maxDecisions;
+            }
+        }
+
+        boolean tryAcquire(Ghost g) {
+
+            boolean ok = g.starved || (g.aiSlot && (budgetNanos <= 0 || spent.get() < budgetNanos));
+
+            if (ok) {
+                g.aiSlot = false;
+                decisions.increment();
+                if (Metrics.ENABLED) Metrics.aiDecisions.increment();
+            } else {
+                degraded.increment();
+                if (Metrics.ENABLED) Metrics.aiFallbacks.increment();
+            }
+            g.starved = !ok;
+            return ok;
+        }
+
+        void release(long costNanos) {
+            spent.addAndGet(costNanos);
+        }
+
+        long decisions() { return decisions.sum(); }
+
+        long degraded() { return degraded.sum(); }
+    }
+
+    /**
+     * The maze reduced to the tiles where a walker has a choice. Nodes are
+     * open tiles with three or more exits, or only one (dead ends); every
+     * other open tile is a corridor, straight or a corner, whose exits form
+     * the edges between nodes. Ghosts only run their AI on nodes and follow
+     * the corridor everywhere else. Exits off the grid count as open, as
+     * tunnels do for movement.
+     *
+     * The edges are walked once up front: for every open tile and exit, the
+     * node the corridor leads to and how many tiles away it is. A corridor
+     * that runs off the grid ends there, with no node (-1).
+     */
+    static final class Junctions {
+        static final String[] DIRS = {"L", "R", "U", "D"};
+        private static final int[] DX = {-1, 1, 0, 0}, DY = {0, 0, -1, 1};
+        static final int NODE = 16;
+
+        final int width, height;
+        // per tile: bit i set if DIRS[i] is open, NODE on nodes; edges per tile and exit, index tile * 4 + exit.
+        // Heap arrays when derived, views of the cache file when mapped by MapCache.
+        private final ByteBuffer tiles;
+        private final IntBuffer edgeEnd, edgeLength;
+        final int nodes;
+
+        Junctions(boolean[][] walls) {
+
+            width = walls.length;
+            height = walls[0].length;
+            byte[] tile = new byte[width * height];
+            int count = 0;
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (walls[x][y]) continue;
+                    int mask = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int nx = x + DX[i], ny = y + DY[i];
+                        boolean inside = nx >= 0 && ny >= 0 && nx < width && ny < height;
+                        if (!inside || !walls[nx][ny]) mask |= 1 << i;
+                    }
+                    if (Integer.bitCount(mask) != 2) {
+                        mask |= NODE;
+                        count++;
+                    }
+                    tile[y * width + x] = (byte)mask;
+                }
+            }
+            nodes = count;
+
+            int[] end = new int[width * height * 4], length = new int[width * height * 4];
+            for (int t = 0; t < width * height; t++) {
+                for (int i = 0; i < 4; i++) {
+                    end[t * 4 + i] = -1;
+                    if ((tile[t] & (1 << i)) != 0) walk(tile, t, i, end, length);
+                }
+            }
+            tiles = ByteBuffer.wrap(tile);
+            edgeEnd = IntBuffer.wrap(end);
+            edgeLength = IntBuffer.wrap(length);
+        }
+
+        /** Over tables stored by MapCache. */
+        Junctions(int width, int height, ByteBuffer tiles, IntBuffer edgeEnd, IntBuffer edgeLength) {
+
+            this.width = width;
+            this.height = height;
+            this.tiles = tiles;
+            this.edgeEnd = edgeEnd;
+            this.edgeLength = edgeLength;
+            int count = 0;
+            for (int t = 0; t < width * height; t++) {
+                if ((tiles.get(t) & NODE) != 0) count++;
+            }
+            nodes = count;
+        }
+
+        /** Follows the corridor out of tile t by exit i up to the next node or the grid edge. */
+        private void walk(byte[] tile, int t, int i, int[] end, int[] length) {
+
+            int x = t % width, y = t / width, dir = i, steps = 0;
+            // a ring of corridor with no node on it would go round forever
+            while (steps < width * height) {
+                x += DX[dir];
+                y += DY[dir];
+                steps++;
+                if (x < 0 || y < 0 || x >= width || y >= height) break;
+                int at = y * width + x;
+                if ((tile[at] & NODE) != 0) {
+                    end[t * 4 + i] = at;
+                    break;
+                }
+                // a corridor has two exits, leave by the one we did not come in through
+                dir = Integer.numberOfTrailingZeros(tile[at] & 15 & ~(1 << (dir ^ 1)));
+            }
+            length[t * 4 + i] = steps;
+        }
+
+        boolean isNode(int x, int y) {
+            return x < 0 || y < 0 || x >= width || y >= height || (tiles.get(y * width + x) & NODE) != 0;
+        }
+
+        /** The node reached by leaving tile (x, y) towards {@code dir}, as y * width + x; -1 if none. */
+        int edgeEnd(int x, int y, String dir) {
+            int i = index(dir);
+            return i < 0 ? -1 : edgeEnd.get((y * width + x) * 4 + i);
+        }
+
+        /** Tiles from (x, y) to edgeEnd(), or to the grid edge; 0 if {@code dir} is walled. */
+        int edgeLength(int x, int y, String dir) {
+            int i = index(dir);
+            return i < 0 ? 0 : edgeLength.get((y * width + x) * 4 + i);
+        }
+
+        private static int index(String dir) {
+            for (int i = 0; i < 4; i++) {
+                if (DIRS[i].equals(dir)) return i;
+            }
+            return -1;
+        }
+
+        /** A random open way out of tile (x, y), or null if it has none. */
+        String randomExit(int x, int y, Random rnd) {
+
+            int mask = tiles.get(y * width + x) & 15;
+            if (mask == 0) return null;
+            int pick = rnd.nextInt(Integer.bitCount(mask));
+            for (int i = 0; i < 4; i++) {
+                if ((mask & (1 << i)) != 0 && pick-- == 0) return DIRS[i];
+            }
+            return null;
+        }
+
+        /** The way on from corridor tile (x, y) for a walker heading {@code dir}. */
+        String follow(int x, int y, String dir) {
+
+            int mask = tiles.get(y * width + x) & 15;
+            int back = index(dir);
+            if (back >= 0) back ^= 1;
+            for (int i = 0; i < 4; i++) {
+                if ((mask & (1 << i)) != 0 && i != back) return DIRS[i];
+            }
+            return back >= 0 ? DIRS[back] : dir;
+        }
+    }
+
+    /**
+     * Which tiles can see each other down a straight open corridor. Each open
+     * tile stores the id of the horizontal and of the vertical run of open
+     * tiles it belongs to, and two tiles see each other iff they share one:
+     * one compare per check and two ints per tile, where a visible set per
+     * tile would grow with the square of the maze. Runs of a tunnel row that
+     * reach both edges are joined, since sight wraps like movement does.
+     */
+    static final class Sightlines {
+        final int width, height;
+        private final IntBuffer rowRun, colRun;   // heap arrays, or views of the mapped MapCache file
+
+        Sightlines(boolean[][] walls, boolean[] wrapRows) {
+
+            width = walls.length;
+            height = walls[0].length;
+            int[] rowRun = new int[width * height];
+            int[] colRun = new int[width * height];
+            Arrays.fill(rowRun, -1);
+            Arrays.fill(colRun, -1);
+            int next = 0;
+
+            for (int y = 0; y < height; y++) {
+                int firstRun = -1;
+                for (int x = 0; x < width; x++) {
+                    if (walls[x][y]) continue;
+                    if (x == 0 || walls[x - 1][y]) next++;
+                    if (x == 0) firstRun = next;
+                    rowRun[y * width + x] = next;
+                }
+                // the run touching the right edge continues from the left one
+                if (wrapRows[y] && firstRun >= 0 && !walls[width - 1][y]) {
+                    for (int x = width - 1; x >= 0 && !walls[x][y]; x--) rowRun[y * width + x] = firstRun;
+                }
+            }
+
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    if (walls[x][y]) continue;
+                    if (y == 0 || walls[x][y - 1]) next++;
+                    colRun[y * width + x] = next;
+                }
+            }
+            this.rowRun = IntBuffer.wrap(rowRun);
+            this.colRun = IntBuffer.wrap(colRun);
+        }
+
+        /** Over run ids stored by MapCache. */
+        Sightlines(int width, int height, IntBuffer rowRun, IntBuffer colRun) {
+            this.width = width;
+            this.height = height;
+            this.rowRun = rowRun;
+            this.colRun = colRun;
+        }
+
+        boolean sees(int ax, int ay, int bx, int by) {
+
+            if (ax < 0 || ay < 0 || bx < 0 || by < 0 || ax >= width || bx >= width || ay >= height || by >= height) {
+                return false;
+            }
+            int a = ay * width + ax, b = by * width + bx;
+            int run = rowRun.get(a);
+            return run >= 0 && (run == rowRun.get(b) || colRun.get(a) == colRun.get(b));
+        }
+    }
+
+    /**
+     * Maze-distance index over the remaining pellets, kept up to date as they
+     * are eaten instead of scanning the grid and running a fresh BFS per query.
+     *
+     * A distance field gives every open tile its nearest pellet and BFS
+     * distance, so foodDistance() is one array read. Removing a pellet only
+     * re-floods the tiles that pointed at it, seeded from the border of that
+     * region.
+     *
+     * Tiles are numbered y * width + x; queries off the grid find nothing.
+     * Update on the tick thread only; queries are safe from the ghost tasks
+     * it waits on.
+     */
+    static final class PelletIndex {
+        static final int INF = Integer.MAX_VALUE;
+
+        final int width, height;
+        private final boolean[] open;
+        private final boolean[] wrapRow;
+        private final boolean[] pellet, power;
+        private final Field anyFood;
+        private int remaining;
+
+        // scratch for updates; stamp avoids clearing between uses
+        private final int[] queue;
+        private final int[] seen;
+        private int stamp = 0;
+        private final long[] borderKeys;
+        private final int[] border;
+
+        final class Field {
+            final int[] dist;
+            final int[] src;
+
+            Field() {
+                dist = new int[width * height];
+                src = new int[width * height];
+            }
+
+            void build(boolean[] isSource) {
+
+                Arrays.fill(dist, INF);
+                Arrays.fill(src, -1);
+                int head = 0, tail = 0;
+
+                for (int t = 0; t < dist.length; t++) {
+                    if (isSource[t]) {
+                        dist[t] = 0;
+                        src[t] = t;
+                        queue[tail++] = t;
+                    }
+                }
+                flood(head, tail, null, 0);
+            }
+
+            /** Forgets {@code s} as a source and re-floods the tiles that were closest to it. */
+            void remove(int s) {
+
+                if (src[s] != s) {
+                    return;
+                }
+
+                // the region of s is connected through BFS parents, so a flood over src == s finds it
+                int mark = ++stamp;
+                int n = 0;
+                queue[n++] = s;
+                seen[s] = mark;
+
+                for (int i = 0; i < n; i++) {
+                    int t = queue[i];
+                    for (int k = 0; k < 4; k++) {
+                        int u = neighbour(t, k);
+                        if (u >= 0 && seen[u] != mark && src[u] == s) {
+                            seen[u] = mark;
+                            queue[n++] = u;
+                        }
+                    }
+                }
+
+                for (int i = 0; i < n; i++) {
+                    dist[queue[i]] = INF;
+                    src[queue[i]] = -1;
+                }
+
+                // border tiles still know a source; enter them in distance order
+                long[] keys = borderKeys;
+                int b = 0;
+                int borderMark = ++stamp;
+
+                for (int i = 0; i < n; i++) {
+                    for (int k = 0; k < 4; k++) {
+                        int u = neighbour(queue[i], k);
+                        if (u >= 0 && dist[u] != INF && seen[u] != borderMark) {
+                            seen[u] = borderMark;
+                            keys[b++] = ((long)dist[u] << 32) | u;
+                        }
+                    }
+                }
+
+                Arrays.sort(keys, 0, b);
+                for (int i = 0; i < b; i++) border[i] = (int)keys[i];
+                flood(0, 0, border, b);
+            }
+
+            /** BFS from queue[head..tail) merged with {@code extra} seeds sorted by distance. */
+            private void flood(int head, int tail, int[] extra, int extraCount) {
+
+                int e = 0;
+
+                while (head < tail || e < extraCount) {
+                    int t;
+                    if (e < extraCount && (head == tail || dist[extra[e]] <= dist[queue[head]])) {
+                        t = extra[e++];
+                    } else {
+                        t = queue[head++];
+                    }
+
+                    for (int k = 0; k < 4; k++) {
+                        int u = neighbour(t, k);
+                        if (u >= 0 && dist[t] + 1 < dist[u]) {
+                            dist[u] = dist[t] + 1;
+                            src[u] = src[t];
+                            if (tail == queue.length) {
+                                // a tile can only be queued again with a shorter distance, compact first
+                                System.arraycopy(queue, head, queue, 0, tail - head);
+                                tail -= head;
+                                head = 0;
+                            }
+                            queue[tail++] = u;
+                        }
+                    }
+                }
+            }
+        }
+
+        PelletIndex(boolean[][] walls, boolean[] tunnelRows, boolean[][] pellets, boolean[][] powers) {
+
+            width = walls.length;
+            height = walls[0].length;
+            int n = width * height;
+            open = new boolean[n];
+            wrapRow = tunnelRows.clone();
+            pellet = new boolean[n];
+            power = new boolean[n];
+            queue = new int[n * 4];
+            seen = new int[n];
+            borderKeys = new long[n];
+            border = new int[n];
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int t = y * width + x;
+                    open[t] = !walls[x][y];
+                    pellet[t] = pellets[x][y];
+                    power[t] = powers[x][y];
+                }
+            }
+
+            anyFood = new Field();
+            rebuild();
+        }
+
+        /** Recomputes everything from the current pellet flags. */
+        void rebuild() {
+
+            remaining = 0;
+            boolean[] food = new boolean[pellet.length];
+
+            for (int t = 0; t < pellet.length; t++) {
+                food[t] = pellet[t] || power[t];
+                if (food[t]) remaining++;
+            }
+            anyFood.build(food);
+        }
+
+        /** Rebuilds from the given grids, e.g. after a game state was restored. */
+        void reload(boolean[][] pellets, boolean[][] powers) {
+
+            for (int t = 0; t < pellet.length; t++) {
+                pellet[t] = pellets[t % width][t / width];
+                power[t] = powers[t % width][t / width];
+            }
+            rebuild();
+        }
+
+        void remove(int x, int y) {
+
+            int t = y * width + x;
+
+            if (!pellet[t] && !power[t]) {
+                return;
+            }
+
+            pellet[t] = false;
+            power[t] = false;
+            remaining--;
+            anyFood.remove(t);
+        }
+
+        int remaining() { return remaining; }
+
+        /** Maze distance to the nearest food, or INF if none is reachable. */
+        int foodDistance(int x, int y) { return inside(x, y) ? anyFood.dist[y * width + x] : INF; }
+
+        private boolean inside(int x, int y) {
+            return x >= 0 && y >= 0 && x < width && y < height;
+        }
+
+        /** Open neighbour of tile t in direction k (L, R, U, D), or -1; tunnel rows wrap. */
+        int neighbour(int t, int k) {
+
+            int x = t % width, y = t / width;
+
+            switch (k) {
+                case 0: x--; break;
+                case 1: x++; break;
+                case 2: y--; break;
+                default: y++; break;
+            }
+
+            if (x < 0 || x >= width) {
+                if (!wrapRow[y]) return -1;
+                x = (x + width) % width;
+            }
+
+            if (y < 0 || y >= height) {
+                return -1;
+            }
+
+            int u = y * width + x;
+            return open[u] ? u : -1;
+        }
+    }
+
+    private void resetPositions(){
+
+        Point p = (pacStart != null) ? pacStart : new Point(GRID_W/2, GRID_H-5);
+        Point pc = gridCenterPoint(p.x,p.y);
+        pac.x = pc.x; pac.y = pc.y; pac.dir = null; pac.req = null;
+        pac.facing = "R";
+        double now = simTime;
+        releasesSinceReset = 0;
+        ghostCount = ghosts.size();
+        nextHouseReleaseTime = now + INITIAL_RELEASE_DELAY;
+
+        timers.cancel(powerTimer);
+
+        for (Ghost g: ghosts){
+            Point gc = gridCenterPoint(g.homeTile.x, g.homeTile.y);
+            g.x = gc.x; g.y = gc.y;
+            g.homeCenter = new Point(gc.x, gc.y);
+            g.dir = "U";
+            g.alive = true; g.vulnerable = false;
+            g.vulnEnd = 0.0; g.speed = g.baseSpeed;
+            g.inHouse = true;
+            timers.cancel(g.respawnTimer);
+            scheduleGhostRelease(g, now);
+        }
+    }
+
+    private void scheduleGhostRelease(Ghost ghost, double earliest){
+
+        int releaseCap = ghostCount <= 0 ? 4 : ghostCount;
+        double gap = releasesSinceReset < releaseCap ? INITIAL_RELEASE_GAP : STANDARD_RELEASE_GAP;
+        double releaseTime = Math.max(nextHouseReleaseTime, earliest);
+        ghost.releaseAt = releaseTime;
+        ghost.inHouse = true;
+        timers.schedule(ghost.releaseTimer, tickAt(releaseTime));
+        nextHouseReleaseTime = releaseTime + gap;
+        releasesSinceReset++;
+    }
+
+    private String chooseByDistance(List<String> options, Point from, Point target, boolean farthest){
+
+        String choice = options.get(0);
+        double best = farthest ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+
+        for (String dir : options){
+
+            int nx = from.x + dx(dir);
+            int ny = from.y + dy(dir);
+            double dist = Math.hypot(target.x - nx, target.y - ny);
+
+            if (farthest){
+                if (dist > best){
+                    best = dist;
+                    choice = dir;
+                }
+            } else {
+                if (dist < best){
+                    best = dist;
+                    choice = dir;
+                }
+            }
+        }
+        return choice;
+    }
+
+    private Point pacFutureTile(int steps){
+
+        Point tile = pac.tile();
+        String d = pac.dir != null ? pac.dir : pac.req;
+
+        if (d == null){
+            return tile;
+        }
+
+        int tx = tile.x;
+        int ty = tile.y;
+
+        for (int i=0; i<steps; i++){
+            int nx = tx + dx(d);
+            int ny = ty + dy(d);
+
+            if (!inBounds(nx, ny) || isWall(nx, ny)){
+                break;
+            }
+            tx = nx;
+            ty = ny;
+        }
+        tx = Math.max(0, Math.min(GRID_W-1, tx));
+        ty = Math.max(0, Math.min(GRID_H-1, ty));
+
+        return new Point(tx, ty);
+    }
+
+    private Point advanceUntilWall(Point start, String dir, int steps) {
+
+        if (dir == null){
+            return new Point(start);
+        }
+
+        int tx = start.x;
+        int ty = start.y;
+        for (int i = 0; i < steps; i++) {
+            int nx = tx + dx(dir);
+            int ny = ty + dy(dir);
+            if (!inBounds(nx, ny) || isWall(nx, ny)) break;
+            tx = nx;
+            ty = ny;
+        }
+        return new Point(tx, ty);
+    }
+
+    private Point smartRedTarget() {
+
+        Point predicted = pacFutureTile(Ghost.Difficulty.INSANE.predictionTiles);
+        String heading = pac.dir != null ? pac.dir : pac.facing;
+        Point extended = advanceUntilWall(predicted, heading, 2);
+        Point pacTile = pac.tile();
+        int blendX = (int)Math.round((extended.x * 2 + pacTile.x) / 3.0);
+        int blendY = (int)Math.round((extended.y * 2 + pacTile.y) / 3.0);
+        blendX = Math.max(0, Math.min(GRID_W - 1, blendX));
+        blendY = Math.max(0, Math.min(GRID_H - 1, blendY));
+
+        return new Point(blendX, blendY);
+    }
+
+    // movement helpers
+    private int dx(String d){
+        if ("L".equals(d)){
+            return -1;
+        } if ("R".equals(d)){
+            return 1;
+        } return 0;
+    }
+
+    private int dy(String d){
+
+        if ("U".equals(d)){
+            return -1;
+        } if ("D".equals(d)){
+            return 1;
+        } return 0;
+    }
+    private String opposite(String d){ if (d==null) return null; switch(d){ case "L": return "R"; case "R": return "L"; case "U": return "D"; case "D": return "U"; } return null; }
+
+    private boolean collisionInDir(Entity e, String dir){
+
+        if (dir == null){
+            return false;
+        }
+
+        double look = TILE/2.0;
+        double nx = e.x + dx(dir)*look;
+        double ny = e.y + dy(dir)*look;
+        int tx = tileIndex(nx), ty = tileIndex(ny);
+
+        if (!inBounds(tx,ty)) {
+            if ("L".equals(dir) || "R".equals(dir)) {
+                int row = tileIndex(e.y);
+                if (isTunnelRow(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return isWall(tx,ty);
+    }
+
+    /**
+     * Moves {@code e} speed * dt along its direction, stopping on every tile
+     * center on the way so {@code atCenter} can turn or stop it. However large
+     * dt is, no center is skipped and the trail is recorded for swept collisions.
+     */
+    private void travel(Entity e, double dt, Consumer<Entity> atCenter){
+
+        double total = e.speed * dt;
+        double left = total;
+
+        if (e.dir == null || total <= 0){
+            return;
+        }
+        alignCrossAxis(e);
+
+        while (left > 0 && e.dir != null){
+            double step = centerAhead(e);
+            double t = dt * (total - left + Math.min(step, left)) / total;
+
+            if (step > left){
+                moveAndRecord(e, left, t);
+                break;
+            }
+
+            moveAndRecord(e, step, t);
+            left -= step;
+            if ("L".equals(e.dir) || "R".equals(e.dir)) e.x = tileIndex(e.x) * TILE + TILE / 2.0;
+            else e.y = tileIndex(e.y) * TILE + TILE / 2.0;
+            e.trail.add(t, e.x, e.y);
+            e.centerTile = tileKey(e);
+
+            atCenter.accept(e);
+
+            if (e.dir == null || collisionInDir(e, e.dir)){
+                break;
+            }
+        }
+    }
+
+    private void moveAndRecord(Entity e, double dist, double t){
+
+        double px = e.x + dx(e.dir) * dist;
+        double py = e.y + dy(e.dir) * dist;
+        moveEntity(e, e.dir, dist);
+
+        if (px != e.x || py != e.y){
+            // wrapped through a tunnel: jump in the trail at the same instant
+            e.trail.add(t, px, py);
+            e.trail.add(t, e.x, e.y);
+        }
+    }
+
+    private double distanceToNextCenter(Entity e){
+
+        double c, d;
+
+        if ("L".equals(e.dir) || "R".equals(e.dir)){
+            c = tileIndex(e.x) * TILE + TILE / 2.0;
+            d = "R".equals(e.dir) ? c - e.x : e.x - c;
+        } else {
+            c = tileIndex(e.y) * TILE + TILE / 2.0;
+            d = "D".equals(e.dir) ? c - e.y : e.y - c;
+        }
+        return d < 0 ? d + TILE : d;
+    }
+
+    private void alignCrossAxis(Entity e){
+
+        if ("L".equals(e.dir) || "R".equals(e.dir)){
+            e.y = tileIndex(e.y) * TILE + TILE / 2.0;
+        } else {
+            e.x = tileIndex(e.x) * TILE + TILE / 2.0;
+        }
+    }
+
+    private void snapToCenter(Entity e){
+
+        Point t = e.tile();
+
+        if (inBounds(t.x, t.y)) {
+            Point c = gridCenter(t.x,t.y);
+            e.x = c.x; e.y = c.y;
+        }
+    }
+
+    private int tileKey(Entity e){
+        return tileIndex(e.y) * GRID_W + tileIndex(e.x);
+    }
+
+    private void moveEntity(Entity e, String dir, double dist){
+        e.x += dx(dir) * dist;
+        e.y += dy(dir) * dist;
+
+        // wrap tunnels if out of bounds
+        if (e.x < -TILE / 2.0) {
+            e.x = SCREEN_W - TILE / 2.0;
+        } else if (e.x > SCREEN_W + TILE / 2.0) {
+            e.x = TILE / 2.0;
+        }
+
+        e.y = Math.max(e.radius, Math.min(SCREEN_H - e.radius, e.y));
+    }
+
+    private static class SoundManager {
+        enum Effect {
+            PELLET(1200, 50),
+            POWER(400, 220),
+            GHOST_EAT(250, 260),
+            PAC_DIE(180, 400);
+
+            final double frequency;
+            final int durationMs;
+
+            Effect(double frequency, int durationMs) {
+                this.frequency = frequency;
+                this.durationMs = durationMs;
+            }
+        }
+
+        private static final int SAMPLE_RATE = 16000;
+
+        // created on the first sound, so muted and headless runs never start it
+        private static ExecutorService soundExecutor;
+        private static boolean closed = false;
+        private static volatile boolean unavailable = false;
+
+        private static synchronized ExecutorService executor() {
+
+            if (soundExecutor == null && !closed) {
+                soundExecutor = Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "sound-exec");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            return soundExecutor;
+        }
+
+        static synchronized int threadCount() {
+            return soundExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)soundExecutor).getPoolSize() : 0;
+        }
+
+        static void play(Effect effect) {
+            if (effect == null || unavailable) return;
+            ExecutorService ex = executor();
+            if (ex == null || ex.isShutdown()) return;
+            ex.submit(() -> playTone(effect.frequency, effect.durationMs));
+        }
+
+        private static void playTone(double frequency, int durationMs) {
+            AudioFormat format = new AudioFormat(SAMPLE_RATE, 8, 1, true, true);
+            int length = (int)(SAMPLE_RATE * (durationMs / 1000.0));
+
+            if (length <= 0){
+                return;
+            }
+
+            byte[] data = new byte[length];
+
+            for (int i = 0; i < length; i++) {
+                double angle = 2.0 * Math.PI * i * frequency / SAMPLE_RATE;
+                double envelope = Math.min(1.0, 1.5 * (1 - (double)i / length));
+                data[i] = (byte)(Math.sin(angle) * 120 * envelope);
+            }
+            SourceDataLine line = null;
+            try {
+                DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+                line = (SourceDataLine) AudioSystem.getLine(info);
+                line.open(format);
+                line.start();
+                line.write(data, 0, data.length);
+                line.drain();
+            } catch (LineUnavailableException ex) {
+                // line busy, try again next time
+            } catch (IllegalArgumentException ex) {
+                // no audio device at all (headless), stop loading the audio stack for nothing
+                unavailable = true;
+            } finally {
+                if (line != null) {
+                    line.stop();
+                    line.close();
+                }
+            }
+        }
+
+        static void shutdown() {
+            ExecutorService ex;
+            synchronized (SoundManager.class) {
+                closed = true;
+                ex = soundExecutor;
+            }
+            if (ex == null) return;
+            ex.shutdownNow();
+            try {
+                ex.awaitTermination(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // --- Game events ---
+
+    /**
+     * Single-producer ring of preallocated event records. The tick thread fills
+     * the next slot and publishes it with a release store; it never allocates,
+     * locks or waits. Each listener runs on its own daemon thread, copies every
+     * record into its own scratch event and re-checks the cursor afterwards, so
+     * a record that was overwritten mid-copy is counted as lost, not delivered.
+     *
+     * A listener that falls a whole ring behind skips ahead to the oldest
+     * record still available. Lag and lost records are kept per listener and
+     * exported by Metrics.
+     *
+     * An idle listener parks until publish() unparks it. Each side writes its
+     * own volatile (cursor, parked) before reading the other's, so either the
+     * listener sees the new event or the producer sees it parked. Subscribe
+     * before the first publish.
+     */
+    static final class EventBus {
+        enum Type { PELLET, POWER, GHOST_EATEN, PAC_DIED, LEVEL_WON, GAME_OVER }
+
+        static final class Event {
+            Type type;
+            long tick;
+            int x, y;           // tile, -1 if not applicable
+            int ghost;          // ghost index, -1 if not applicable
+            int score;          // score after the event
+            boolean audible;    // false when muted or fast-forwarding
+
+            void copyFrom(Event e) {
+                type = e.type; tick = e.tick; x = e.x; y = e.y;
+                ghost = e.ghost; score = e.score; audible = e.audible;
+            }
+        }
+
+        interface Listener {
+            void onEvent(Event e);
+        }
+
+        final class Subscription implements Runnable {
+            final String name;
+            private final Listener listener;
+            private final Event scratch = new Event();
+            private final AtomicLong consumed = new AtomicLong(-1);
+            private final LongAdder lost = new LongAdder();
+            private volatile boolean running = true;
+            private final AtomicBoolean parked = new AtomicBoolean();
+            private Thread thread;
+
+            Subscription(String name, Listener listener) {
+                this.name = name;
+                this.listener = listener;
+            }
+
+            public void run() {
+
+                long seq = 0;
+
+                while (running) {
+                    long available = cursor.get();
+
+                    if (available < seq) {
+                        idle(seq);
+                        continue;
+                    }
+
+                    if (available - seq >= capacity) {
+                        skip(seq, available - capacity + 1);
+                        seq = available - capacity + 1;
+                    }
+
+                    for (; seq <= available && running; seq++) {
+                        scratch.copyFrom(ring[(int)(seq & mask)]);
+                        VarHandle.acquireFence();
+
+                        // the producer may already be writing the slot after the cursor
+                        long now = cursor.get();
+                        if (now + 1 - seq >= capacity) {
+                            skip(seq, now + 2 - capacity);
+                            seq = now + 1 - capacity;
+                            continue;
+                        }
+
+                        listener.onEvent(scratch);
+                        consumed.lazySet(seq);
+                    }
+                }
+            }
+
+            private void idle(long seq) {
+                parked.set(true);
+                if (cursor.get() < seq && running) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                parked.set(false);
+            }
+
+            private void skip(long from, long to) {
+
+                if (to > from) {
+                    lost.add(to - from);
+                }
+            }
+
+            /** Events published but not yet handled by this listener. */
+            long lag() { return cursor.get() - consumed.get(); }
+
+            long lost() { return lost.sum(); }
+
+            void stop() {
+                running = false;
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private static final long MAX_PARK_NANOS = 100_000_000;   // only matters if a wake-up is lost
+
+        private final Event[] ring;
+        private final int capacity, mask;
+        private final AtomicLong cursor = new AtomicLong(-1);
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private long next = 0;      // producer only
+
+        EventBus(int capacityPow2) {
+
+            capacity = Integer.highestOneBit(Math.max(2, capacityPow2));
+            mask = capacity - 1;
+            ring = new Event[capacity];
+
+            for (int i = 0; i < capacity; i++) {
+                ring[i] = new Event();
+            }
+        }
+
+        /** Starts a daemon thread delivering events to {@code listener}. */
+        Subscription subscribe(String name, Listener listener) {
+
+            Subscription s = new Subscription(name, listener);
+            subscriptions.add(s);
+            Thread t = new Thread(s, "events-" + name);
+            t.setDaemon(true);
+            s.thread = t;
+            t.start();
+            return s;
+        }
+
+        /** Slot for the next event; fill it, then call publish(). Tick thread only. */
+        Event claim() {
+            // keep the writes to this slot after the previous cursor store
+            VarHandle.releaseFence();
+            return ring[(int)(next & mask)];
+        }
+
+        void publish() {
+            cursor.set(next++);
+            for (int i = 0; i < subscriptions.size(); i++) {
+                Subscription s = subscriptions.get(i);
+                // one unpark per park, however many events land before it wakes
+                if (s.parked.get() && s.parked.compareAndSet(true, false)) LockSupport.unpark(s.thread);
+            }
+        }
+
+        List<Subscription> subscriptions() { return subscriptions; }
+
+        void shutdown() {
+            for (Subscription s : subscriptions) s.stop();
+        }
+    }
+
+    /** Plays the effect for each audible event. */
+    static final class AudioListener implements EventBus.Listener {
+        public void onEvent(EventBus.Event e) {
+
+            if (!e.audible) {
+                return;
+            }
+
+            switch (e.type) {
+                case PELLET: SoundManager.play(SoundManager.Effect.PELLET); break;
+                case POWER: SoundManager.play(SoundManager.Effect.POWER); break;
+                case GHOST_EATEN: SoundManager.play(SoundManager.Effect.GHOST_EAT); break;
+                case PAC_DIED: SoundManager.play(SoundManager.Effect.PAC_DIE); break;
+                default: break;
+            }
+        }
+    }
+
+    /** Running totals per event type, readable from any thread; exported by Metrics. */
+    static final class StatsListener implements EventBus.Listener {
+        final LongAdder[] counts = new LongAdder[EventBus.Type.values().length];
+
+        StatsListener() {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        public void onEvent(EventBus.Event e) {
+            counts[e.type.ordinal()].increment();
+        }
+
+        long count(EventBus.Type type) { return counts[type.ordinal()].sum(); }
+    }
+
+    // --- Startup profiling ---
+
+    /**
+     * Timestamps of the startup phases, printed to stderr once the first frame
+     * (or first batch step) is done. Enabled with -Dpacman.startupReport=true;
+     * otherwise every call is a single boolean check.
+     */
+    static final class StartupProfile {
+        static final boolean ENABLED = Boolean.getBoolean("pacman.startupReport");
+        private static final long START = System.nanoTime();
+        private static final List<String> phases = new ArrayList<>();
+        private static final List<Long> times = new ArrayList<>();
+        private static volatile boolean reported = false;
+
+        static void mark(String phase) {
+            if (!ENABLED || reported) return;
+            record(phase);
+        }
+
+        private static synchronized void record(String phase) {
+            if (reported) return;
+            phases.add(phase);
+            times.add(System.nanoTime());
+        }
+
+        static void report(String lastPhase) {
+            if (!ENABLED || reported) return;
+            print(lastPhase);
+        }
+
+        private static synchronized void print(String lastPhase) {
+
+            if (reported) return;
+            record(lastPhase);
+            reported = true;
+
+            // JVM uptime is only looked up here, so the management classes are not loaded otherwise
+            long uptime = java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime();
+            double jvmToMain = uptime - (System.nanoTime() - START) / 1e6;
+            StringBuilder sb = new StringBuilder("startup:\n");
+            sb.append(String.format("  %-28s %8.1f ms%n", "jvm start -> main", jvmToMain));
+            long prev = START;
+
+            for (int i = 0; i < phases.size(); i++) {
+                sb.append(String.format("  %-28s %8.1f ms%n", phases.get(i), (times.get(i) - prev) / 1e6));
+                prev = times.get(i);
+            }
+            sb.append(String.format("  %-28s %8.1f ms%n", "total since main", (prev - START) / 1e6));
+            System.err.print(sb);
+        }
+    }
+
+    // --- Metrics ---
+
+    /**
+     * Process-wide metrics for headless and batch runs, served in the
+     * Prometheus text format on -Dpacman.metrics.port by the JDK's built-in
+     * HTTP server. It listens on loopback only unless -Dpacman.metrics.host
+     * names another address, e.g. 0.0.0.0 for all interfaces. Every update is a LongAdder add, so the games of a batch
+     * record into the same metrics without contending on a shared counter.
+     * Without the port every hook is a constant-false branch.
+     */
+    static final class Metrics {
+        static final int PORT = Integer.getInteger("pacman.metrics.port", 0);
+        static final boolean ENABLED = PORT > 0;
+
+        // EXPORT covers the frame exporter and the pixel observer
+        enum Phase { TIMERS, PACMAN, GHOSTS, COLLISIONS, EXPORT, STEP }
+
+        private static final long[] LATENCY_BOUNDS = {
+                1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000, 200_000, 500_000,
+                1_000_000, 2_000_000, 5_000_000, 10_000_000, 20_000_000, 50_000_000, 100_000_000
+        };
+        private static final long[] SCORE_BOUNDS = {250, 500, 1000, 1500, 2000, 2500, 3000, 4000, 6000, 8000, 12000};
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+        static final LongAdder ticks = new LongAdder();
+        static final LongAdder gamesCompleted = new LongAdder();
+        static final LongAdder pellets = new LongAdder();
+        static final LongAdder aiDecisions = new LongAdder();
+        static final LongAdder aiFallbacks = new LongAdder();
+        static final LongAdder rollbacks = new LongAdder();
+        static final LongAdder rollbackFrames = new LongAdder();
+        static final LongAdder stalls = new LongAdder();
+        static final LongAdder stateChecks = new LongAdder();
+        static final LongAdder desyncs = new LongAdder();
+        static final Histogram[] phases = new Histogram[Phase.values().length];
+        static final Histogram ghostWait = new Histogram(LATENCY_BOUNDS);
+        static final Histogram scores = new Histogram(SCORE_BOUNDS);
+        private static final Set<ThreadPoolExecutor> executors = ConcurrentHashMap.newKeySet();
+        private static final Set<StatsListener> eventStats = ConcurrentHashMap.newKeySet();
+        private static final Set<EventBus> eventBuses = ConcurrentHashMap.newKeySet();
+
+        private static HttpServer server;
+        private static long lastScrapeNanos = System.nanoTime();
+        private static long lastTicks = 0;
+        private static long lastPellets = 0;
+
+        static {
+            for (int i = 0; i < phases.length; i++) phases[i] = new Histogram(LATENCY_BOUNDS);
+        }
+
+        /** Records the phase that started at {@code since} and returns now, the start of the next one. */
+        static long lap(Phase phase, long since) {
+            long now = System.nanoTime();
+            phases[phase.ordinal()].record(now - since);
+            return now;
+        }
+
+        static void gameFinished(int score) {
+            gamesCompleted.increment();
+            scores.record(score);
+        }
+
+        /** Reports queue length and active threads of a ghost pool; shared pools are counted once. */
+        static void watch(ExecutorService ex) {
+            if (ex instanceof ThreadPoolExecutor) executors.add((ThreadPoolExecutor)ex);
+        }
+
+        /** Adds a game's event counts to pacman_game_events_total. */
+        static void watch(StatsListener stats) {
+            eventStats.add(stats);
+        }
+
+        /** Reports lag and lost events of each listener on {@code bus}; subscribe them first. */
+        static void watch(EventBus bus) {
+            eventBuses.add(bus);
+        }
+
+        static synchronized void start() {
+
+            if (server != null) {
+                return;
+            }
+
+            try {
+                String host = System.getProperty("pacman.metrics.host");
+                InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+                server = HttpServer.create(new InetSocketAddress(address, PORT), 0);
+            } catch (IOException ex) {
+                System.err.println("metrics: cannot listen on port " + PORT + ": " + ex.getMessage());
+                return;
+            }
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            server.start();
+        }
+
+        static synchronized void stop() {
+            if (server != null) {
+                server.stop(0);
+                server = null;
+            }
+        }
+
+        static synchronized String scrape() {
+
+            StringBuilder sb = new StringBuilder(8192);
+
+            long now = System.nanoTime();
+            double seconds = (now - lastScrapeNanos) / 1e9;
+            long stepped = ticks.sum(), eaten = pellets.sum();
+            double tickRate = seconds > 0 ? (stepped - lastTicks) / seconds : 0;
+            double pelletRate = seconds > 0 ? (eaten - lastPellets) / seconds : 0;
+            lastScrapeNanos = now;
+            lastTicks = stepped;
+            lastPellets = eaten;
+
+            gauge(sb, "pacman_tick_rate_hz", "Simulation steps run per wall-clock second since the previous scrape, rollback re-simulation included.", tickRate);
+            counter(sb, "pacman_ticks_total", "Simulation steps run by all games.", stepped);
+
+            sb.append("# HELP pacman_tick_phase_seconds Time spent in each phase of a simulation step.\n");
+            sb.append("# TYPE pacman_tick_phase_seconds histogram\n");
+            for (Phase p : Phase.values()) {
+                phases[p.ordinal()].write(sb, "pacman_tick_phase_seconds", "phase=\"" + label(p) + "\"", 1e9);
+            }
+            sb.append("# HELP pacman_tick_phase_quantile_seconds Step phase latency percentiles, bucket upper bounds.\n");
+            sb.append("# TYPE pacman_tick_phase_quantile_seconds gauge\n");
+            for (Phase p : Phase.values()) {
+                for (double q : QUANTILES) {
+                    sb.append("pacman_tick_phase_quantile_seconds{phase=\"").append(label(p))
+                            .append("\",quantile=\"").append(q).append("\"} ")
+                            .append(phases[p.ordinal()].quantile(q) / 1e9).append('\n');
+                }
+            }
+
+            executors.removeIf(ThreadPoolExecutor::isTerminated);
+            long queued = 0, active = 0;
+            for (ThreadPoolExecutor ex : executors) {
+                queued += ex.getQueue().size();
+                active += ex.getActiveCount();
+            }
+            gauge(sb, "pacman_ghost_executor_queue_length", "Ghost updates waiting for a thread.", queued);
+            gauge(sb, "pacman_ghost_executor_active_threads", "Threads running ghost updates.", active);
+            sb.append("# HELP pacman_ghost_task_wait_seconds Time from submitting a ghost update to it starting.\n");
+            sb.append("# TYPE pacman_ghost_task_wait_seconds histogram\n");
+            ghostWait.write(sb, "pacman_ghost_task_wait_seconds", "", 1e9);
+            sb.append("# HELP pacman_ghost_decisions_total Ghost junction decisions, by full AI or budget fallback.\n");
+            sb.append("# TYPE pacman_ghost_decisions_total counter\n");
+            sb.append("pacman_ghost_decisions_total{outcome=\"full\"} ").append(aiDecisions.sum()).append('\n');
+            sb.append("pacman_ghost_decisions_total{outcome=\"fallback\"} ").append(aiFallbacks.sum()).append('\n');
+
+            counter(sb, "pacman_games_completed_total", "Games that ended and were scored.", gamesCompleted.sum());
+            sb.append("# HELP pacman_game_score Final score of completed games.\n");
+            sb.append("# TYPE pacman_game_score histogram\n");
+            scores.write(sb, "pacman_game_score", "", 1);
+
+            counter(sb, "pacman_pellets_eaten_total", "Pellets and power pellets eaten by all games.", eaten);
+            gauge(sb, "pacman_pellets_per_second", "Pellets eaten per wall-clock second since the previous scrape.", pelletRate);
+
+            counter(sb, "pacman_versus_rollbacks_total", "Versus rollbacks to a late remote input.", rollbacks.sum());
+            counter(sb, "pacman_versus_rollback_frames_total", "Steps re-simulated by versus rollbacks.", rollbackFrames.sum());
+            counter(sb, "pacman_versus_stalls_total", "Versus steps held back waiting for the peer.", stalls.sum());
+            sb.append("# HELP pacman_versus_state_checks_total State hashes compared with the peer, by result.\n");
+            sb.append("# TYPE pacman_versus_state_checks_total counter\n");
+            long failed = desyncs.sum();
+            sb.append("pacman_versus_state_checks_total{result=\"match\"} ").append(stateChecks.sum() - failed).append('\n');
+            sb.append("pacman_versus_state_checks_total{result=\"desync\"} ").append(failed).append('\n');
+
+            sb.append("# HELP pacman_game_events_total Game events published by interactive games.\n");
+            sb.append("# TYPE pacman_game_events_total counter\n");
+            for (EventBus.Type t : EventBus.Type.values()) {
+                long n = 0;
+                for (StatsListener st : eventStats) n += st.count(t);
+                sb.append("pacman_game_events_total{type=\"").append(t.name().toLowerCase()).append("\"} ").append(n).append('\n');
+            }
+
+            // listeners of the same name in different games are summed
+            Map<String, long[]> listeners = new TreeMap<>();
+            for (EventBus bus : eventBuses) {
+                for (EventBus.Subscription sub : bus.subscriptions()) {
+                    long[] v = listeners.computeIfAbsent(sub.name, k -> new long[2]);
+                    v[0] += sub.lag();
+                    v[1] += sub.lost();
+                }
+            }
+            sb.append("# HELP pacman_event_listener_lag Events published but not yet handled, by listener.\n");
+            sb.append("# TYPE pacman_event_listener_lag gauge\n");
+            for (Map.Entry<String, long[]> e : listeners.entrySet()) {
+                sb.append("pacman_event_listener_lag{listener=\"").append(e.getKey()).append("\"} ").append(e.getValue()[0]).append('\n');
+            }
+            sb.append("# HELP pacman_event_listener_lost_total Events a listener skipped after falling a whole ring behind.\n");
+            sb.append("# TYPE pacman_event_listener_lost_total counter\n");
+            for (Map.Entry<String, long[]> e : listeners.entrySet()) {
+                sb.append("pacman_event_listener_lost_total{listener=\"").append(e.getKey()).append("\"} ").append(e.getValue()[1]).append('\n');
+            }
+
+            Leaderboard board = Leaderboard.shared();
+            if (board != null) {
+                gauge(sb, "pacman_scores_recorded", "Games in the score file, from every process that writes it.", board.size());
+                List<Leaderboard.Entry> top = board.topK(1);
+                gauge(sb, "pacman_scores_best", "Best score in the score file.", top.isEmpty() ? 0 : top.get(0).score);
+                sb.append("# HELP pacman_scores_unindexed Games in the score file left out of the best-by-seed or best-by-map index because its table was full.\n");
+                sb.append("# TYPE pacman_scores_unindexed gauge\n");
+                sb.append("pacman_scores_unindexed{table=\"seed\"} ").append(board.seedsDropped()).append('\n');
+                sb.append("pacman_scores_unindexed{table=\"map\"} ").append(board.mapsDropped()).append('\n');
+            }
+
+            gauge(sb, "pacman_sound_threads", "Threads in the sound executor.", SoundManager.threadCount());
+
+            sb.append("# HELP pacman_gc_pause_seconds_total Time spent in collections as reported by each collector.\n");
+            sb.append("# TYPE pacman_gc_pause_seconds_total counter\n");
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                sb.append("pacman_gc_pause_seconds_total{gc=\"").append(gc.getName()).append("\"} ")
+                        .append(Math.max(0, gc.getCollectionTime()) / 1e3).append('\n');
+            }
+            sb.append("# HELP pacman_gc_collections_total Collections run by each collector.\n");
+            sb.append("# TYPE pacman_gc_collections_total counter\n");
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                sb.append("pacman_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ")
+                        .append(Math.max(0, gc.getCollectionCount())).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private static String label(Phase p) {
+            return p.name().toLowerCase();
+        }
+
+        private static void counter(StringBuilder sb, String name, String help, long value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void gauge(StringBuilder sb, String name, String help, double value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(value).append('\n');
+        }
+    }
+
+    /** Fixed-bucket histogram with a LongAdder per bucket. */
+    static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] counts;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void record(long v) {
+            int i = Arrays.binarySearch(bounds, v);
+            counts[i >= 0 ? i : -i - 1].increment();
+            sum.add(v);
+        }
+
+        /** Upper bound of the bucket holding quantile {@code q}; the top bound if it is in the overflow bucket. */
+        long quantile(double q) {
+
+            long[] c = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < c.length; i++) total += c[i] = counts[i].sum();
+            if (total == 0) return 0;
+
+            long rank = (long)Math.ceil(q * total), seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += c[i];
+                if (seen >= rank) return bounds[i];
+            }
+            return bounds[bounds.length - 1];
+        }
+
+        /** Prometheus histogram lines, values divided by {@code unit} (1e9 turns nanoseconds into seconds). */
+        void write(StringBuilder sb, String name, String labels, double unit) {
+
+            String sep = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                String le = i < bounds.length ? String.valueOf(bounds[i] / unit) : "+Inf";
+                sb.append(name).append("_bucket{").append(sep).append("le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            sb.append(name).append("_sum").append(braces).append(' ').append(sum.sum() / unit).append('\n');
+            sb.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    // --- Map artifact cache ---
+
+    /**
+     * Everything derived from the map text alone: the parsed grids, spawn
+     * points, sight runs and the junction graph. Derived once per process and
+     * shared by every game in it. Games copy the grids, since pellets get
+     * eaten, and share Sightlines and Junctions, which never change.
+     *
+     * With -Dpacman.mapCache=<dir> the artifacts are kept in map-<hash>.bin,
+     * keyed by a hash of the map text. Later processes map the file read-only
+     * and Sightlines and Junctions read their tables straight from the
+     * mapping, so every process on the host shares the same pages; only the
+     * small grids are decoded onto the heap. Opening checks the header alone:
+     * magic, version, map hash, dimensions, the file size the header implies
+     * and a checksum over the header. A file that fails is stale and gets
+     * rewritten. Writes go to a temp file that is renamed into place, so a
+     * reader never sees half a body.
+     *
+     * Layout, little endian. Header of HEADER_SIZE bytes:
+     *   magic(8) version(4) width(4) height(4) ghostStarts(4) pacX(4) pacY(4)
+     *   mapHash(8) bodyLength(4) pad(4) headerChecksum(8)
+     * Body, int tables aligned to 4 bytes:
+     *   grid      one byte per tile (y * width + x): 1 wall, 2 pellet, 4 power
+     *   tunnels   one byte per row
+     *   starts    x and y ints per ghost start
+     *   junctions one byte per tile, exits and node flag as Junctions keeps them
+     *   sight     row run ids, then column run ids, one int per tile each
+     *   edges     edge ends, then edge lengths, one int per tile and exit each
+     */
+    static final class MapCache {
+        static final int HEADER_SIZE = 64;
+        private static final long MAGIC = 0x5041434d41504332L; // "PACMAPC2"
+        private static final int VERSION = 2;
+        private static final int WALL = 1, PELLET = 2, POWER = 4;
+
+        private static MapCache shared;
+
+        final int width, height;
+        final boolean[][] walls, pellets, powers;
+        final boolean[] tunnelRows;
+        final List<Point> ghostStarts = new ArrayList<>();
+        Point pacStart = null;
+        Sightlines sightlines;
+        Junctions junctions;
+
+        private MapCache(int width, int height) {
+            this.width = width;
+            this.height = height;
+            walls = new boolean[width][height];
+            pellets = new boolean[width][height];
+            powers = new boolean[width][height];
+            tunnelRows = new boolean[height];
+        }
+
+        /** The artifacts for RAW_MAP, from the cache file if there is a valid one. */
+        static synchronized MapCache shared() {
+
+            if (shared == null) {
+                String dir = System.getProperty("pacman.mapCache");
+                Path file = dir == null ? null : Paths.get(dir, String.format("map-%016x.bin", MAP_HASH));
+                MapCache map = file == null ? null : read(file, MAP_HASH);
+                if (map == null) {
+                    map = derive(RAW_MAP);
+                    if (file != null) map.write(file, MAP_HASH);
+                }
+                shared = map;
+            }
+            return shared;
+        }
+
+        static MapCache derive(String[] raw) {
+
+            MapCache m = new MapCache(GRID_W, GRID_H);
+            boolean[][] walls = m.walls;
+
+            for (int y=0;y<GRID_H;y++){
+
+                String row = raw[y];
+
+                for (int x=0;x<GRID_W;x++){
+                    char ch = (x < row.length()) ? row.charAt(x) : ' ';
+                    if (ch == '#'){
+                        walls[x][y] = true;
+                    } else if (ch == '.'){
+                        m.pellets[x][y] = true;
+
+                    } else if (ch == 'o'){
+                        m.powers[x][y] = true;
+
+                    } else if (ch == 'G') {
+                        m.ghostStarts.add(new Point(x,y));
+
+                    } else if (ch == 'P'){
+                        m.pacStart = new Point(x,y);
                     }
-                    if (g.difficulty == Ghost.Difficulty.INSANE) {
-                        target = smartRedTarget();
+
+                    if (y >= GRID_H - 2) {
+                        walls[x][y] = true;
+                        m.pellets[x][y] = false;
+                        m.powers[x][y] = false;
+                    }
+                }
+
+                boolean leftTunnel = y < GRID_H - 2 && !walls[0][y] && !walls[1][y];
+                boolean rightTunnel = y < GRID_H - 2 && !walls[GRID_W - 1][y] && !walls[GRID_W - 2][y];
+                m.tunnelRows[y] = leftTunnel || rightTunnel;
+            }
+
+            m.sightlines = new Sightlines(walls, m.tunnelRows);
+            m.junctions = new Junctions(walls);
+            return m;
+        }
+
+        /** Where each table of the body starts, and where the file ends. */
+        private static final class Layout {
+            final int grid, tunnels, starts, junctions, sight, edges, end;
+
+            Layout(int width, int height, int ghostStarts) {
+                int tiles = width * height;
+                grid = HEADER_SIZE;
+                tunnels = grid + tiles;
+                starts = align4(tunnels + height);
+                junctions = starts + ghostStarts * 8;
+                sight = align4(junctions + tiles);
+                edges = sight + tiles * 8;
+                end = edges + tiles * 32;
+            }
+
+            private static int align4(int n) {
+                return (n + 3) & ~3;
+            }
+        }
+
+        /** Maps {@code file} and wraps it, or returns null if it is missing or does not match. */
+        static MapCache read(Path file, long mapHash) {
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    System.err.println("map cache: ignoring truncated " + file);
+                    return null;
+                }
+                // the mapping outlives the channel, and every process shares its pages
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+
+                int width = buf.getInt(12), height = buf.getInt(16), starts = buf.getInt(20);
+                if (buf.getLong(0) != MAGIC || buf.getInt(8) != VERSION || buf.getLong(48) != checksum(buf, 0, 48)
+                        || buf.getLong(32) != mapHash || width != GRID_W || height != GRID_H
+                        || starts < 0 || starts > width * height
+                        || size != new Layout(width, height, starts).end || buf.getInt(40) != size - HEADER_SIZE) {
+                    System.err.println("map cache: ignoring stale " + file);
+                    return null;
+                }
+                return wrap(buf, width, height, starts);
+            } catch (NoSuchFileException ex) {
+                return null;
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("map cache: cannot read " + file + ": " + ex.getMessage());
+                return null;
+            }
+        }
+
+        private static MapCache wrap(ByteBuffer buf, int width, int height, int starts) {
+
+            MapCache m = new MapCache(width, height);
+            Layout at = new Layout(width, height, starts);
+            int tiles = width * height;
+
+            for (int t = 0; t < tiles; t++) {
+                int f = buf.get(at.grid + t);
+                int x = t % width, y = t / width;
+                m.walls[x][y] = (f & WALL) != 0;
+                m.pellets[x][y] = (f & PELLET) != 0;
+                m.powers[x][y] = (f & POWER) != 0;
+            }
+            for (int y = 0; y < height; y++) {
+                m.tunnelRows[y] = buf.get(at.tunnels + y) != 0;
+            }
+            for (int i = 0; i < starts; i++) {
+                m.ghostStarts.add(new Point(buf.getInt(at.starts + i * 8), buf.getInt(at.starts + i * 8 + 4)));
+            }
+            int pacX = buf.getInt(24), pacY = buf.getInt(28);
+            m.pacStart = pacX < 0 ? null : new Point(pacX, pacY);
+
+            m.sightlines = new Sightlines(width, height,
+                    ints(buf, at.sight, tiles), ints(buf, at.sight + tiles * 4, tiles));
+            m.junctions = new Junctions(width, height, bytes(buf, at.junctions, tiles),
+                    ints(buf, at.edges, tiles * 4), ints(buf, at.edges + tiles * 16, tiles * 4));
+            return m;
+        }
+
+        private static ByteBuffer bytes(ByteBuffer buf, int at, int count) {
+            ByteBuffer view = buf.duplicate();
+            view.position(at).limit(at + count);
+            return view.slice();
+        }
+
+        private static IntBuffer ints(ByteBuffer buf, int at, int count) {
+            return bytes(buf, at, count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+
+        void write(Path file, long mapHash) {
+
+            int tiles = width * height;
+            Layout at = new Layout(width, height, ghostStarts.size());
+            ByteBuffer buf = ByteBuffer.allocate(at.end).order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putLong(0, MAGIC);
+            buf.putInt(8, VERSION);
+            buf.putInt(12, width);
+            buf.putInt(16, height);
+            buf.putInt(20, ghostStarts.size());
+            buf.putInt(24, pacStart == null ? -1 : pacStart.x);
+            buf.putInt(28, pacStart == null ? -1 : pacStart.y);
+            buf.putLong(32, mapHash);
+            buf.putInt(40, at.end - HEADER_SIZE);
+            buf.putLong(48, checksum(buf, 0, 48));
+
+            for (int t = 0; t < tiles; t++) {
+                int x = t % width, y = t / width;
+                buf.put(at.grid + t, (byte)((walls[x][y] ? WALL : 0) | (pellets[x][y] ? PELLET : 0) | (powers[x][y] ? POWER : 0)));
+                buf.put(at.junctions + t, junctions.tiles.get(t));
+                buf.putInt(at.sight + t * 4, sightlines.rowRun.get(t));
+                buf.putInt(at.sight + (tiles + t) * 4, sightlines.colRun.get(t));
+            }
+            for (int y = 0; y < height; y++) {
+                buf.put(at.tunnels + y, (byte)(tunnelRows[y] ? 1 : 0));
+            }
+            for (int i = 0; i < ghostStarts.size(); i++) {
+                buf.putInt(at.starts + i * 8, ghostStarts.get(i).x);
+                buf.putInt(at.starts + i * 8 + 4, ghostStarts.get(i).y);
+            }
+            for (int e = 0; e < tiles * 4; e++) {
+                buf.putInt(at.edges + e * 4, junctions.edgeEnd.get(e));
+                buf.putInt(at.edges + (tiles * 4 + e) * 4, junctions.edgeLength.get(e));
+            }
+
+            Path dir = file.toAbsolutePath().getParent();
+            Path tmp = null;
+            try {
+                Files.createDirectories(dir);
+                tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+                Files.write(tmp, buf.array());
+                try {
+                    // temp files start owner-only; workers run as other users should read it too
+                    Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+                } catch (UnsupportedOperationException ignored) {
+                    // not a POSIX file system, keep the defaults
+                }
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("map cache: cannot write " + file + ": " + ex.getMessage());
+                try {
+                    if (tmp != null) Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                    // left for the next writer to replace
+                }
+            }
+        }
+
+        /** FNV-1a over bytes [from, to). */
+        private static long checksum(ByteBuffer buf, int from, int to) {
+
+            long h = 0xcbf29ce484222325L;
+            for (int i = from; i < to; i++) {
+                h ^= buf.get(i) & 0xff;
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+    }
+
+    // --- Persistent leaderboard ---
+
+    /**
+     * Append-only score file of fixed 32 byte records, shared by any number
+     * of threads and processes. Opening it costs the same whatever its size:
+     * everything the queries need lives in a fixed index region at the front
+     * of the file, kept up to date by every append, and nothing is rescanned
+     * or held on the heap per record.
+     *
+     * Index region (INDEX_SIZE bytes, little endian):
+     *   header   magic(8) version(4) recordSize(4) nextSlot(8) total(8) topSize(4)
+     *            pad(4) seedsDropped(8) mapsDropped(8)
+     *   top      TOP_K x (score(4) pad(4) slot(8)), highest first
+     *   maps     MAP_SLOTS x (key(8) best(8)), open addressing
+     *   seeds    SEED_SLOTS x (key(8) best(8)), open addressing
+     *   fenwick  BUCKETS + 1 counts(8) over score buckets, for percentile rank
+     * "best" packs score << 33 | (slot + 1), so a compare-and-set keeps the
+     * best record and ties keep the earlier one. Both tables are bounded: a
+     * key that finds no free entry within MAX_PROBES is not indexed, its
+     * bestFor...() is null, and the append is counted in seedsDropped or
+     * mapsDropped. The first drop in a process is reported on stderr, and the
+     * counts show in --scores and the metrics.
+     *
+     * Records follow, mapped in segments of RECORDS_PER_SEGMENT:
+     * time(8) seed(8) mapHash(8) score(4) meta(4). meta is written last and
+     * is non-zero once the record is complete.
+     *
+     * Slots, counts and best entries are claimed with atomic operations on
+     * the shared mapping, so they hold across processes. The top list is
+     * reordered under a FileLock on its region plus this object's monitor.
+     */
+    static final class Leaderboard implements Closeable {
+        static final int RECORD_SIZE = 32;
+        static final int RECORDS_PER_SEGMENT = 1 << 20;
+        static final int MAX_SEGMENTS = 1 << 12;
+        static final int TOP_K = 100;
+        static final int SCORE_BUCKET = 10;     // all scores are multiples of 10
+        static final int BUCKETS = 1 << 16;
+        static final int MAP_SLOTS = 1 << 10;
+        static final int SEED_SLOTS = 1 << 20;
+        static final int MAX_PROBES = 64;
+        private static final long MAGIC = 0x50414353434f5245L; // "PACSCORE"
+        private static final int VERSION = 2;
+        private static final int META_COMMITTED = 0x5C000000;
+        private static final int META_WON = 0x100;
+        private static final long EMPTY_KEY = 0x9e3779b97f4a7c15L;  // stands in for key 0, which marks a free entry
+
+        private static final int NEXT_SLOT = 16, TOTAL = 24, TOP_SIZE = 32;
+        private static final int SEEDS_DROPPED = 40, MAPS_DROPPED = 48;
+        private static final int TOP = 64;
+        private static final int MAPS = 4096;
+        private static final int SEEDS = MAPS + MAP_SLOTS * 16;
+        private static final int FENWICK = SEEDS + SEED_SLOTS * 16;
+        static final int INDEX_SIZE = (FENWICK + (BUCKETS + 1) * 8 + 4095) & ~4095;
+
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+        static final class Entry {
+            final long time;
+            final long seed;
+            final long mapHash;
+            final int score;
+            final int lives;
+            final boolean won;
+
+            Entry(long time, long seed, long mapHash, int score, int lives, boolean won) {
+                this.time = time;
+                this.seed = seed;
+                this.mapHash = mapHash;
+                this.score = score;
+                this.lives = lives;
+                this.won = won;
+            }
+        }
+
+        private static Leaderboard shared;
+        private static boolean sharedFailed = false;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer index;
+        private final AtomicReferenceArray<MappedByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+        private final AtomicBoolean dropReported = new AtomicBoolean();
+
+        Leaderboard(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // mapping past the end grows the file; the unused index stays sparse on disk
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_SIZE);
+            index.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (index.getLong(0) == 0) {
+                // a new file is stamped by whichever process gets there first, magic last
+                INTS.compareAndSet(index, 8, 0, VERSION);
+                INTS.compareAndSet(index, 12, 0, RECORD_SIZE);
+                LONGS.compareAndSet(index, 0, 0L, MAGIC);
+            }
+            if (index.getLong(0) != MAGIC || index.getInt(8) != VERSION || index.getInt(12) != RECORD_SIZE) {
+                channel.close();
+                throw new IOException("Not a version " + VERSION + " score file: " + file);
+            }
+        }
+
+        /** Opens the score file named by -Dpacman.scores, or null if it cannot be opened. */
+        static synchronized Leaderboard shared() {
+
+            if (shared == null && !sharedFailed) {
+                String path = System.getProperty("pacman.scores",
+                        Paths.get(System.getProperty("user.home"), ".pacman-scores.dat").toString());
+                try {
+                    shared = new Leaderboard(Paths.get(path));
+                } catch (IOException | RuntimeException ex) {
+                    // scores are optional, keep playing without them
+                    System.err.println("scores: " + ex.getMessage());
+                    sharedFailed = true;
+                }
+            }
+            return shared;
+        }
+
+        void append(long time, long seed, long mapHash, int score, int lives, boolean won) {
+
+            long slot = (long)LONGS.getAndAdd(index, NEXT_SLOT, 1L);
+            MappedByteBuffer seg;
+
+            try {
+                seg = segment(slot);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot grow score file", ex);
+            }
+
+            int off = offsetInSegment(slot);
+            seg.putLong(off, time);
+            seg.putLong(off + 8, seed);
+            seg.putLong(off + 16, mapHash);
+            seg.putInt(off + 24, score);
+            int meta = META_COMMITTED | (won ? META_WON : 0) | (lives & 0xFF);
+            INTS.setRelease(seg, off + 28, meta);
+
+            for (int i = bucket(score) + 1; i <= BUCKETS; i += i & -i) {
+                LONGS.getAndAdd(index, FENWICK + i * 8, 1L);
+            }
+            long best = (long)Math.max(0, score) << 33 | (slot + 1);
+            if (!offerBest(SEEDS, SEED_SLOTS, seed, best)) dropped(SEEDS_DROPPED, "seed");
+            if (!offerBest(MAPS, MAP_SLOTS, mapHash, best)) dropped(MAPS_DROPPED, "map");
+            LONGS.getAndAdd(index, TOTAL, 1L);
+
+            int size = (int)INTS.getVolatile(index, TOP_SIZE);
+            if (size < TOP_K || score > (int)INTS.getVolatile(index, TOP + (TOP_K - 1) * 16)) {
+                insertTop(score, slot);
+            }
+        }
+
+        /**
+         * Keeps {@code best} for {@code key} if it beats the entry already
+         * there. False if the key has no entry and none is free near it.
+         */
+        private boolean offerBest(int base, int slots, long key, long best) {
+
+            long k = key == 0 ? EMPTY_KEY : key;
+            int h = (int)(mix(k) & (slots - 1));
+
+            for (int probe = 0; probe < MAX_PROBES; probe++, h = (h + 1) & (slots - 1)) {
+                int off = base + h * 16;
+                long cur = (long)LONGS.getVolatile(index, off);
+                if (cur == 0 && LONGS.compareAndSet(index, off, 0L, k)) {
+                    cur = k;
+                } else if (cur == 0) {
+                    cur = (long)LONGS.getVolatile(index, off);
+                }
+                if (cur != k) {
+                    continue;
+                }
+                long old;
+                do {
+                    old = (long)LONGS.getVolatile(index, off + 8);
+                    if (old != 0 && old >>> 33 >= best >>> 33) {
+                        return true;
                     }
-                    if (g.rnd.nextDouble() < g.difficulty.chaseBias) {
-                        selected = chooseByDistance(choices, t, target, false);
+                } while (!LONGS.compareAndSet(index, off + 8, old, best));
+                return true;
+            }
+            return false;
+        }
+
+        private void dropped(int counter, String table) {
+
+            LONGS.getAndAdd(index, counter, 1L);
+            if (dropReported.compareAndSet(false, true)) {
+                System.err.println("scores: " + table + " index is full near this key; "
+                        + "best scores for some " + table + "s are no longer tracked");
+            }
+        }
+
+        private Entry findBest(int base, int slots, long key, boolean bySeed) {
+
+            long k = key == 0 ? EMPTY_KEY : key;
+            int h = (int)(mix(k) & (slots - 1));
+
+            for (int probe = 0; probe < MAX_PROBES; probe++, h = (h + 1) & (slots - 1)) {
+                int off = base + h * 16;
+                long cur = (long)LONGS.getVolatile(index, off);
+                if (cur == 0) {
+                    return null;
+                }
+                if (cur == k) {
+                    long best = (long)LONGS.getVolatile(index, off + 8);
+                    Entry e = best == 0 ? null : read((best & ((1L << 33) - 1)) - 1);
+                    // EMPTY_KEY may also be a real key
+                    return e != null && (bySeed ? e.seed : e.mapHash) == key ? e : null;
+                }
+            }
+            return null;
+        }
+
+        private static long mix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            return k ^ (k >>> 33);
+        }
+
+        /** The record in {@code slot}, or null if it is not complete. */
+        private Entry read(long slot) {
+
+            MappedByteBuffer seg;
+            try {
+                seg = segment(slot);
+            } catch (IOException ex) {
+                return null;
+            }
+            int off = offsetInSegment(slot);
+            int meta = (int)INTS.getAcquire(seg, off + 28);
+            if (meta == 0) {
+                return null;
+            }
+            return new Entry(seg.getLong(off), seg.getLong(off + 8), seg.getLong(off + 16),
+                    seg.getInt(off + 24), meta & 0xFF, (meta & META_WON) != 0);
+        }
+
+        private int offsetInSegment(long slot) {
+            return (int)(slot % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+        }
+
+        private MappedByteBuffer segment(long slot) throws IOException {
+
+            int idx = (int)(slot / RECORDS_PER_SEGMENT);
+
+            if (idx >= MAX_SEGMENTS) {
+                throw new IOException("Score file full");
+            }
+
+            MappedByteBuffer seg = segments.get(idx);
+
+            if (seg != null) {
+                return seg;
+            }
+
+            synchronized (segments) {
+                seg = segments.get(idx);
+                if (seg == null) {
+                    long pos = INDEX_SIZE + (long)idx * RECORDS_PER_SEGMENT * RECORD_SIZE;
+                    seg = channel.map(FileChannel.MapMode.READ_WRITE, pos, (long)RECORDS_PER_SEGMENT * RECORD_SIZE);
+                    seg.order(ByteOrder.LITTLE_ENDIAN);
+                    segments.set(idx, seg);
+                }
+            }
+            return seg;
+        }
+
+        private synchronized void insertTop(int score, long slot) {
+
+            FileLock lock = null;
+            try {
+                lock = lockTop(false);
+                int size = index.getInt(TOP_SIZE);
+
+                if (size == TOP_K && score <= index.getInt(TOP + (TOP_K - 1) * 16)) {
+                    return;
+                }
+
+                int i = Math.min(size, TOP_K - 1);
+
+                while (i > 0 && index.getInt(TOP + (i - 1) * 16) < score) {
+                    index.putInt(TOP + i * 16, index.getInt(TOP + (i - 1) * 16));
+                    index.putLong(TOP + i * 16 + 8, index.getLong(TOP + (i - 1) * 16 + 8));
+                    i--;
+                }
+
+                index.putInt(TOP + i * 16, score);
+                index.putLong(TOP + i * 16 + 8, slot);
+                INTS.setVolatile(index, TOP_SIZE, Math.min(TOP_K, size + 1));
+            } catch (IOException ex) {
+                // the list is only a view; the record itself is safely appended
+            } finally {
+                release(lock);
+            }
+        }
+
+        /** Lock on the top list region, or null where the file system has no locks. */
+        private FileLock lockTop(boolean shared) throws IOException {
+            try {
+                return channel.lock(TOP_SIZE, TOP + TOP_K * 16 - TOP_SIZE, shared);
+            } catch (UnsupportedOperationException ex) {
+                return null;
+            }
+        }
+
+        private static void release(FileLock lock) {
+            try {
+                if (lock != null) lock.release();
+            } catch (IOException ex) {
+                // closing the channel drops it anyway
+            }
+        }
+
+        private static int bucket(int score) {
+            return Math.max(0, Math.min(BUCKETS - 1, score / SCORE_BUCKET));
+        }
+
+        private long countBelowBucket(int b) {
+
+            long sum = 0;
+
+            for (int i = b; i > 0; i -= i & -i) {
+                sum += (long)LONGS.getVolatile(index, FENWICK + i * 8);
+            }
+            return sum;
+        }
+
+        /** Best {@code k} scores, highest first. k is capped at TOP_K. */
+        synchronized List<Entry> topK(int k) {
+
+            List<Entry> out = new ArrayList<>();
+            FileLock lock = null;
+
+            try {
+                lock = lockTop(true);
+                int n = Math.min(k, index.getInt(TOP_SIZE));
+                for (int i = 0; i < n; i++) {
+                    Entry e = read(index.getLong(TOP + i * 16 + 8));
+                    if (e != null) out.add(e);
+                }
+            } catch (IOException ex) {
+                // same as an empty board
+            } finally {
+                release(lock);
+            }
+            return out;
+        }
+
+        /** Percentage of recorded games that scored strictly less than {@code score}. */
+        double percentileRank(int score) {
+
+            long n = size();
+
+            if (n == 0) {
+                return 0.0;
+            }
+            return 100.0 * countBelowBucket(bucket(score)) / n;
+        }
+
+        Entry bestForSeed(long seed) { return findBest(SEEDS, SEED_SLOTS, seed, true); }
+
+        Entry bestForMap(long mapHash) { return findBest(MAPS, MAP_SLOTS, mapHash, false); }
+
+        long size() { return (long)LONGS.getVolatile(index, TOTAL); }
+
+        /** Appends whose seed found no free entry in the seed table. */
+        long seedsDropped() { return (long)LONGS.getVolatile(index, SEEDS_DROPPED); }
+
+        /** Appends whose map hash found no free entry in the map table. */
+        long mapsDropped() { return (long)LONGS.getVolatile(index, MAPS_DROPPED); }
+
+        @Override
+        public void close() throws IOException {
+
+            index.force();
+            for (int i = 0; i < MAX_SEGMENTS; i++) {
+                MappedByteBuffer seg = segments.get(i);
+                if (seg != null) {
+                    seg.force();
+                }
+            }
+            channel.close();
+        }
+    }
+
+    // --- Shared-memory frame export ---
+
+    /**
+     * Publishes every simulation step into a memory-mapped ring of fixed-size
+     * frames so other processes can watch the game without any serialization.
+     *
+     * File layout, little endian:
+     * <pre>
+     * header (64 bytes): magic(8) version(4) width(4) height(4) ghosts(4)
+     *                    slots(4) slotSize(4) published(8 @ 32)
+     * slot:  seq(8) tick(8) simTime(8) score(4) lives(4) powerLeft(4f) reserved(4)
+     *        pac: x(4f) y(4f) dir(1) pad(3)
+     *        ghost[ghosts]: x(4f) y(4f) dir(1) flags(1) pad(2) vulnLeft(4f)
+     *        tiles[width*height]: bit0 wall, bit1 pellet, bit2 power
+     * </pre>
+     * Each slot is a seqlock: seq is odd while the frame is written and
+     * 2 * frame + 2 once it is complete. A reader takes {@code published},
+     * reads slot {@code (published - 1) % slots} in place, and keeps the
+     * result if seq was even and unchanged before and after. The writer never
+     * waits for readers; a reader that falls a whole ring behind just misses frames.
+     * dir is 0 none, 1 L, 2 R, 3 U, 4 D; ghost flags are 1 alive, 2 vulnerable, 4 in house.
+     */
+    static final class FrameExporter implements Closeable {
+        static final long MAGIC = 0x454d415246434150L; // "PACFRAME"
+        static final int VERSION = 1;
+        static final int HEADER_SIZE = 64;
+        static final int PUBLISHED = 32;
+        static final int FRAME_FIELDS = 48;
+        static final int PAC_SIZE = 12;
+        static final int GHOST_SIZE = 16;
+        static final int DEFAULT_SLOTS = 256;
+        static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+        final int width, height, ghostSlots, slots, slotSize;
+        private final FileChannel channel;
+        private final MappedByteBuffer buf;
+        private final byte[] tiles;
+        private int seenEaten = 0;
+        private boolean rebuild = true;
+        private long frame = 0;
+
+        FrameExporter(Path file, int width, int height, int ghostSlots, int slots) throws IOException {
+
+            this.width = width;
+            this.height = height;
+            this.ghostSlots = ghostSlots;
+            this.slots = slots;
+            this.slotSize = align8(FRAME_FIELDS + PAC_SIZE + ghostSlots * GHOST_SIZE + width * height);
+            this.tiles = new byte[width * height];
+
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)slots * slotSize);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(8, VERSION);
+            buf.putInt(12, width);
+            buf.putInt(16, height);
+            buf.putInt(20, ghostSlots);
+            buf.putInt(24, slots);
+            buf.putInt(28, slotSize);
+            LONGS.setRelease(buf, PUBLISHED, 0L);
+            // magic last, so a reader never sees a half-written header
+            LONGS.setRelease(buf, 0, MAGIC);
+        }
+
+        /** Exporter named by -Dpacman.export, with {@code suffix} appended, or null. */
+        static FrameExporter fromProperty(String suffix) {
+
+            String path = System.getProperty("pacman.export");
+
+            if (path == null) {
+                return null;
+            }
+
+            try {
+                return new FrameExporter(Paths.get(path + suffix), GRID_W, GRID_H, GHOST_COLORS.length,
+                        Integer.getInteger("pacman.exportSlots", DEFAULT_SLOTS));
+            } catch (IOException ex) {
+                System.err.println("Frame export disabled: " + ex.getMessage());
+                return null;
+            }
+        }
+
+        private static int align8(int n) {
+            return (n + 7) & ~7;
+        }
+
+        /** The game went back to an earlier state: take the tiles from its grids again on the next frame. */
+        void rewound() {
+            rebuild = true;
+        }
+
+        void publish(PacmanClone game) {
+
+            if (rebuild || game.eatenCount < seenEaten) {
+                rebuild = false;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        tiles[y * width + x] = (byte)((game.walls[x][y] ? 1 : 0)
+                                | (game.pellets[x][y] ? 2 : 0) | (game.powers[x][y] ? 4 : 0));
                     }
                 }
-                if (g.rnd.nextDouble() < g.difficulty.randomTurnChance) {
-                    selected = choices.get(g.rnd.nextInt(choices.size()));
+                seenEaten = game.eatenCount;
+            }
+
+            // otherwise only eaten tiles change
+            while (seenEaten < game.eatenCount) {
+                tiles[game.eatenTiles[seenEaten++]] &= ~6;
+            }
+
+            int base = HEADER_SIZE + (int)(frame % slots) * slotSize;
+            LONGS.setOpaque(buf, base, 2 * frame + 1);
+            VarHandle.releaseFence();
+
+            Pacman pac = game.pac;
+            buf.putLong(base + 8, game.tickCount);
+            buf.putDouble(base + 16, game.simTime);
+            buf.putInt(base + 24, pac.score);
+            buf.putInt(base + 28, pac.lives);
+            buf.putFloat(base + 32, (float)Math.max(0, pac.poweredUntil - game.simTime));
+
+            int at = base + FRAME_FIELDS;
+            buf.putFloat(at, (float)pac.x);
+            buf.putFloat(at + 4, (float)pac.y);
+            buf.put(at + 8, dirCode(pac.dir));
+            at += PAC_SIZE;
+
+            for (int i = 0; i < ghostSlots; i++, at += GHOST_SIZE) {
+                if (i >= game.ghosts.size()) {
+                    buf.putLong(at, 0L);
+                    buf.putLong(at + 8, 0L);
+                    continue;
                 }
-                g.dir = selected;
+                Ghost g = game.ghosts.get(i);
+                buf.putFloat(at, (float)g.x);
+                buf.putFloat(at + 4, (float)g.y);
+                buf.put(at + 8, dirCode(g.dir));
+                buf.put(at + 9, (byte)((g.alive ? 1 : 0) | (g.vulnerable ? 2 : 0) | (g.inHouse ? 4 : 0)));
+                buf.putFloat(at + 12, (float)Math.max(0, g.vulnEnd - game.simTime));
             }
+
+            buf.put(at, tiles);
+
+            LONGS.setRelease(buf, base, 2 * frame + 2);
+            frame++;
+            LONGS.setRelease(buf, PUBLISHED, frame);
         }
 
-        if (g.rnd.nextDouble() < g.difficulty.randomTurnChance * 0.5){
-            g.dir = g.randomDir();
+        static byte dirCode(String d) {
+
+            if (d == null) {
+                return 0;
+            }
+
+            switch (d) {
+                case "L": return 1;
+                case "R": return 2;
+                case "U": return 3;
+                default: return 4;
+            }
         }
 
-        // move
-        if (g.dir != null && !collisionInDir(g, g.dir)){
-            moveEntity(g, g.dir, g.speed, dt);
-        } else {
-            // align if blocked
-            if (g.dir != null && collisionInDir(g, g.dir)){
-                Point t = g.tile();
-                if (inBounds(t.x, t.y)) {
-                    Point c = gridCenter(t.x,t.y);
-                    g.x = c.x; g.y = c.y;
+        long published() { return frame; }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * In-process reader over an exported file, reading fields in place.
+         * Typical use: {@code f = latest(); read fields of f; if (valid(f)) use them}.
+         */
+        static final class Reader implements Closeable {
+            private final FileChannel channel;
+            private final MappedByteBuffer buf;
+            final int width, height, ghostSlots, slots, slotSize;
+
+            Reader(Path file) throws IOException {
+
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+
+                if ((long)LONGS.getAcquire(buf, 0) != MAGIC || buf.getInt(8) != VERSION) {
+                    channel.close();
+                    throw new IOException("Not a frame export: " + file);
                 }
-                g.dir = g.randomDir();
+                width = buf.getInt(12);
+                height = buf.getInt(16);
+                ghostSlots = buf.getInt(20);
+                slots = buf.getInt(24);
+                slotSize = buf.getInt(28);
+            }
+
+            /** Index of the newest complete frame, or -1 if none yet. */
+            long latest() {
+                return (long)LONGS.getAcquire(buf, PUBLISHED) - 1;
+            }
+
+            private int base(long frame) {
+                return HEADER_SIZE + (int)(frame % slots) * slotSize;
+            }
+
+            /** True if {@code frame} is complete and was not overwritten while being read. */
+            boolean valid(long frame) {
+                VarHandle.acquireFence();
+                return (long)LONGS.getAcquire(buf, base(frame)) == 2 * frame + 2;
+            }
+
+            long tick(long frame) { return buf.getLong(base(frame) + 8); }
+            int score(long frame) { return buf.getInt(base(frame) + 24); }
+            int lives(long frame) { return buf.getInt(base(frame) + 28); }
+            float pacX(long frame) { return buf.getFloat(base(frame) + FRAME_FIELDS); }
+            float pacY(long frame) { return buf.getFloat(base(frame) + FRAME_FIELDS + 4); }
+            float ghostX(long frame, int i) { return buf.getFloat(base(frame) + FRAME_FIELDS + PAC_SIZE + i * GHOST_SIZE); }
+            float ghostY(long frame, int i) { return buf.getFloat(base(frame) + FRAME_FIELDS + PAC_SIZE + i * GHOST_SIZE + 4); }
+            byte tile(long frame, int x, int y) {
+                return buf.get(base(frame) + FRAME_FIELDS + PAC_SIZE + ghostSlots * GHOST_SIZE + y * width + x);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
             }
         }
     }
 
-    private void resetPositions(){
+    // --- Headless pixel observations ---
+
+    /**
+     * Software rasterizer for low-resolution observations, e.g. 84x84 grayscale
+     * or one pixel per tile. Draws a Snapshot straight into caller-owned int[]
+     * (0xRRGGBB) or byte[] (luma) buffers by copying a pre-built maze layer and
+     * stamping precomputed discs for pellets and entities, in colors from fixed
+     * int palettes: no Java2D, no AWT colors, no antialiasing.
+     *
+     * A renderer is immutable after construction, so any number of threads may
+     * share one, each rendering its own game into its own buffer.
+     */
+    static final class PixelRenderer {
+        // same colors as the Swing view
+        static final int NAVY_RGB = 0x0A0A28, WALL_RGB = 0x000096, PELLET_RGB = 0xC8C8C8, POWER_RGB = 0xFF6464;
+        static final int PAC_RGB = 0xFFFF00, VULN_RGB = 0x3232C8;
+        static final int[] GHOST_RGB = {0xFF0000, 0xFFB8FF, 0x00FFFF, 0xFFB852};
+
+        final int width, height;
+        private final double sx, sy;
+        private final int[] mazeRgb;
+        private final byte[] mazeGray;
+        private final int[][] pelletDisc, powerDisc, entityDisc;
+        private final byte[] ghostGray = new byte[GHOST_RGB.length];
+
+        PixelRenderer(boolean[][] walls, int width, int height) {
+
+            this.width = width;
+            this.height = height;
+            sx = (double)width / SCREEN_W;
+            sy = (double)height / SCREEN_H;
+            mazeRgb = new int[width * height];
+            mazeGray = new byte[width * height];
+
+            // sample each pixel's center in maze space
+            for (int py = 0; py < height; py++) {
+                int ty = Math.min(GRID_H - 1, (int)((py + 0.5) / sy / TILE));
+                for (int px = 0; px < width; px++) {
+                    int tx = Math.min(GRID_W - 1, (int)((px + 0.5) / sx / TILE));
+                    int c = walls[tx][ty] ? WALL_RGB : NAVY_RGB;
+                    mazeRgb[py * width + px] = c;
+                    mazeGray[py * width + px] = luma(c);
+                }
+            }
 
-        Point p = (pacStart != null) ? pacStart : new Point(GRID_W/2, GRID_H-5);
-        Point pc = gridCenterPoint(p.x,p.y);
-        pac.x = pc.x; pac.y = pc.y; pac.dir = null; pac.req = null;
-        pac.facing = "R";
-        double now = System.currentTimeMillis() / 1000.0;
-        releasesSinceReset = 0;
-        ghostCount = ghosts.size();
-        nextHouseReleaseTime = now + INITIAL_RELEASE_DELAY;
+            pelletDisc = disc(3);
+            powerDisc = disc(6);
+            entityDisc = disc(TILE / 2 - 2);
+            for (int i = 0; i < GHOST_RGB.length; i++) ghostGray[i] = luma(GHOST_RGB[i]);
+        }
 
-        for (Ghost g: ghosts){
-            Point gc = gridCenterPoint(g.homeTile.x, g.homeTile.y);
-            g.x = gc.x; g.y = gc.y;
-            g.homeCenter = new Point(gc.x, gc.y);
-            g.dir = "U";
-            g.alive = true; g.vulnerable = false;
-            g.vulnEnd = 0.0; g.speed = g.baseSpeed;
-            g.inHouse = true;
-            scheduleGhostRelease(g, now);
+        /** Pixel offsets covered by a disc of {@code radius} maze pixels; at least the center pixel. */
+        private int[][] disc(double radius) {
+
+            double rx = radius * sx, ry = radius * sy;
+            int ex = (int)Math.floor(rx), ey = (int)Math.floor(ry);
+            List<int[]> offs = new ArrayList<>();
+
+            for (int dy = -ey; dy <= ey; dy++) {
+                for (int dx = -ex; dx <= ex; dx++) {
+                    double nx = rx == 0 ? 0 : dx / rx, ny = ry == 0 ? 0 : dy / ry;
+                    if (nx * nx + ny * ny <= 1.0) offs.add(new int[]{dx, dy});
+                }
+            }
+
+            if (offs.isEmpty()) {
+                offs.add(new int[]{0, 0});
+            }
+            return offs.toArray(new int[0][]);
+        }
+
+        static byte luma(int rgb) {
+            int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+            return (byte)((r * 77 + g * 150 + b * 29) >> 8);
+        }
+
+        /** Renders {@code state} into {@code out}, which must hold width * height pixels. */
+        void render(Snapshot state, int[] out) {
+            System.arraycopy(mazeRgb, 0, out, 0, mazeRgb.length);
+            draw(state, out, null);
+        }
+
+        /** Grayscale variant of {@link #render(Snapshot, int[])}. */
+        void render(Snapshot state, byte[] out) {
+            System.arraycopy(mazeGray, 0, out, 0, mazeGray.length);
+            draw(state, null, out);
+        }
+
+        private void draw(Snapshot s, int[] rgb, byte[] gray) {
+
+            for (int y = 0; y < GRID_H; y++) {
+                for (int x = 0; x < GRID_W; x++) {
+                    if (s.pellets[x * GRID_H + y]) {
+                        stamp(x * TILE + TILE / 2, y * TILE + TILE / 2, pelletDisc, PELLET_RGB, rgb, gray);
+                    } else if (s.powers[x * GRID_H + y]) {
+                        stamp(x * TILE + TILE / 2, y * TILE + TILE / 2, powerDisc, POWER_RGB, rgb, gray);
+                    }
+                }
+            }
+
+            for (int i = 0; i < s.gx.length; i++) {
+                if (s.alive[i]) {
+                    int c = s.vulnerable[i] ? VULN_RGB : GHOST_RGB[i % GHOST_RGB.length];
+                    stamp(s.gx[i], s.gy[i], entityDisc, c, rgb, gray);
+                }
+            }
+            stamp(s.px, s.py, entityDisc, PAC_RGB, rgb, gray);
+        }
+
+        private void stamp(double mx, double my, int[][] disc, int color, int[] rgb, byte[] gray) {
+
+            int cx = (int)(mx * sx), cy = (int)(my * sy);
+            byte l = gray == null ? 0 : luma(color);
+
+            for (int[] d : disc) {
+                int px = cx + d[0], py = cy + d[1];
+                if (px < 0 || py < 0 || px >= width || py >= height) continue;
+                if (rgb != null) rgb[py * width + px] = color;
+                else gray[py * width + px] = l;
+            }
         }
     }
 
-    private synchronized void scheduleGhostRelease(Ghost ghost, double earliest){
+    /**
+     * Hands pixel observations of a headless game to a Sink every
+     * {@code every} steps, on the tick thread right after the step. Agents in
+     * the same JVM pass their own Sink to runHeadless(); -Dpacman.observe=<file>
+     * records them for offline use instead (batch games append .<n>).
+     *
+     * File layout, little endian: header magic(8) width(4) height(4)
+     * channels(4) every(4) pad(8), then per frame tick(8) and the pixels,
+     * width * height luma bytes, or 0x00RRGGBB ints with channels 3.
+     * -Dpacman.observeSize=84x84, -Dpacman.observeEvery=4 and
+     * -Dpacman.observeRgb=true choose the format.
+     */
+    static final class PixelObserver implements Closeable {
+        static final long MAGIC = 0x4c45584950434150L; // "PACPIXEL"
+        static final int HEADER_SIZE = 32;
+
+        /** Receives each observation; the buffer not in use is null and both are reused. */
+        interface Sink {
+            void frame(long tick, int[] rgb, byte[] gray) throws IOException;
+        }
 
-        int releaseCap = ghostCount <= 0 ? 4 : ghostCount;
-        double gap = releasesSinceReset < releaseCap ? INITIAL_RELEASE_GAP : STANDARD_RELEASE_GAP;
-        double releaseTime = Math.max(nextHouseReleaseTime, earliest);
-        ghost.releaseAt = releaseTime;
-        ghost.inHouse = true;
-        nextHouseReleaseTime = releaseTime + gap;
-        releasesSinceReset++;
+        final PixelRenderer renderer;
+        final int every;
+        private final Sink sink;
+        private final int[] rgb;
+        private final byte[] gray;
+        private Snapshot state = null;
+        private Closeable file = null;
+
+        PixelObserver(PixelRenderer renderer, int every, boolean color, Sink sink) {
+            this.renderer = renderer;
+            this.every = Math.max(1, every);
+            this.sink = sink;
+            rgb = color ? new int[renderer.width * renderer.height] : null;
+            gray = color ? null : new byte[renderer.width * renderer.height];
+        }
+
+        static PixelObserver fromProperty(String suffix) {
+
+            String path = System.getProperty("pacman.observe");
+
+            if (path == null) {
+                return null;
+            }
+
+            String[] size = System.getProperty("pacman.observeSize", "84x84").split("x");
+            int w = Integer.parseInt(size[0].trim()), h = Integer.parseInt(size[1].trim());
+            int every = Integer.getInteger("pacman.observeEvery", 4);
+            boolean color = Boolean.getBoolean("pacman.observeRgb");
+
+            try {
+                FileChannel channel = FileChannel.open(Paths.get(path + suffix), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                ByteBuffer buf = ByteBuffer.allocate(8 + w * h * (color ? 4 : 1)).order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                head.putLong(MAGIC).putInt(w).putInt(h).putInt(color ? 3 : 1).putInt(every).flip();
+                head.limit(HEADER_SIZE);
+                while (head.hasRemaining()) channel.write(head);
+
+                PixelObserver o = new PixelObserver(new PixelRenderer(MapCache.shared().walls, w, h), every, color,
+                        (tick, rgb, gray) -> {
+                            buf.clear();
+                            buf.putLong(tick);
+                            if (rgb != null) buf.asIntBuffer().put(rgb);
+                            else buf.put(gray);
+                            buf.position(0).limit(buf.capacity());
+                            while (buf.hasRemaining()) channel.write(buf);
+                        });
+                o.file = channel;
+                return o;
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Pixel observations disabled: " + ex.getMessage());
+                return null;
+            }
+        }
+
+        void observe(PacmanClone game) throws IOException {
+
+            if (game.tickCount % every != 0) {
+                return;
+            }
+            if (state == null) {
+                state = new Snapshot(game.ghosts.size());
+            }
+            state.save(game);
+            if (rgb != null) renderer.render(state, rgb);
+            else renderer.render(state, gray);
+            sink.frame(game.tickCount, rgb, gray);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) file.close();
+        }
     }
 
-    private String chooseByDistance(List<String> options, Point from, Point target, boolean farthest){
+    // --- Spectator wall ---
+
+    /**
+     * Grid of independently running autopilot games in one window.
+     *
+     * The maze is drawn once into a shared wall layer. Each board keeps its own
+     * copy with pellets, and only erases the tiles eaten since the last frame.
+     * A board is redrawn into the wall back buffer only when one of its sprites
+     * moved on screen, and only that board's rectangle is repainted.
+     */
+    static final class SpectatorWall extends JPanel implements ActionListener {
+        private static final double RESTART_DELAY = 3.0;
+
+        private final ExecutorService ghostPool = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "wall-ghosts");
+                    t.setDaemon(true);
+                    return t;
+                });
+        private final int cols;
+        private final int boardW, boardH;
+        private final double scale;
+        private final BufferedImage wallLayer;
+        private final BufferedImage frame;
+        private final Graphics2D frameG;
+        private final Board[] boards;
+        private long lastNanos = System.nanoTime();
+        private long fpsWindowStart = lastNanos;
+        private int framesInWindow = 0;
+
+        // Entities pre-rendered at wall scale; shape rendering per board is far too slow
+        private static final int MOUTH_STEPS = 8;
+        private final int spriteHalf;
+        private final Map<Long, BufferedImage> ghostSprites = new HashMap<>();
+        private final Map<Integer, BufferedImage> pacSprites = new HashMap<>();
+
+        final class Board {
+            PacmanClone game;
+            final BufferedImage background = new BufferedImage(boardW, boardH, BufferedImage.TYPE_INT_RGB);
+            Graphics2D backgroundG;
+            final int ox, oy;
+            int seenEaten;
+            long signature = Long.MIN_VALUE;
+            double overFor = 0;
+
+            Board(int ox, int oy) {
+                this.ox = ox;
+                this.oy = oy;
+                start();
+            }
 
-        String choice = options.get(0);
-        double best = farthest ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            void start() {
+                game = new PacmanClone(ghostPool);
+                game.autopilot = true;
+                game.muted = true;
+                // the image is reused across restarts, its graphics carry the old scale
+                if (backgroundG != null) backgroundG.dispose();
+                backgroundG = background.createGraphics();
+                backgroundG.drawImage(wallLayer, 0, 0, null);
+                backgroundG.scale(scale, scale);
+                game.paintPellets(backgroundG);
+                seenEaten = game.eatenCount();
+                signature = Long.MIN_VALUE;
+                overFor = 0;
+            }
 
-        for (String dir : options){
+            /** Returns true if the board was redrawn into the back buffer. */
+            boolean refresh() {
 
-            int nx = from.x + dx(dir);
-            int ny = from.y + dy(dir);
-            double dist = Math.hypot(target.x - nx, target.y - ny);
+                boolean pelletsChanged = seenEaten < game.eatenCount();
 
-            if (farthest){
-                if (dist > best){
-                    best = dist;
-                    choice = dir;
+                // erase eaten pellets; pellet tiles are never walls so plain fill is enough
+                backgroundG.setColor(NAVY);
+                while (seenEaten < game.eatenCount()) {
+                    int t = game.eatenTile(seenEaten++);
+                    backgroundG.fillRect((t % GRID_W) * TILE, (t / GRID_W) * TILE, TILE, TILE);
                 }
-            } else {
-                if (dist < best){
-                    best = dist;
-                    choice = dir;
+
+                long sig = signature();
+
+                if (!pelletsChanged && sig == signature) {
+                    return false;
+                }
+                signature = sig;
+
+                frameG.setClip(ox, oy, boardW, boardH);
+                frameG.drawImage(background, ox, oy, null);
+
+                for (Ghost gh : game.ghosts) {
+                    if (gh.alive) {
+                        blit(ghostSprite(gh.vulnerable ? VULN_COLOR : gh.color, gh.dir), gh.x, gh.y);
+                    }
+                }
+                PacmanClone.Pacman p = game.pac;
+                blit(pacSprite(p.dir != null ? p.dir : p.facing, p.mouth), p.x, p.y);
+
+                if (game.gameOver) {
+                    frameG.setColor(Color.WHITE);
+                    frameG.drawString(game.pac.lives <= 0 ? "GAME OVER" : "WIN", ox + 4, oy + 14);
+                }
+                frameG.drawString(Integer.toString(game.pac.score), ox + 4, oy + boardH - 4);
+                return true;
+            }
+
+            private void blit(BufferedImage sprite, double x, double y) {
+                frameG.drawImage(sprite, ox + (int)(x * scale) - spriteHalf, oy + (int)(y * scale) - spriteHalf, null);
+            }
+
+            /** On-screen sprite positions folded into one value; equal means nothing visible moved. */
+            private long signature() {
+
+                long h = game.gameOver ? 1 : 0;
+                h = h * 31 + (int)(game.pac.x * scale);
+                h = h * 31 + (int)(game.pac.y * scale);
+                h = h * 31 + (int)Math.round(game.pac.mouth * (MOUTH_STEPS - 1));
+                h = h * 31 + game.pac.score;
+
+                for (Ghost gh : game.ghosts) {
+                    h = h * 31 + (int)(gh.x * scale);
+                    h = h * 31 + (int)(gh.y * scale);
+                    h = h * 31 + (gh.alive ? 2 : 0) + (gh.vulnerable ? 1 : 0);
+                    h = h * 31 + (gh.dir == null ? 0 : gh.dir.charAt(0));
                 }
+                return h;
             }
         }
-        return choice;
+
+        SpectatorWall(int count, int maxWidth, int maxHeight) {
+
+            cols = (int)Math.ceil(Math.sqrt(count));
+            int rows = (count + cols - 1) / cols;
+            scale = Math.min((double)maxWidth / (cols * SCREEN_W), (double)maxHeight / (rows * SCREEN_H));
+            boardW = Math.max(1, (int)(SCREEN_W * scale));
+            boardH = Math.max(1, (int)(SCREEN_H * scale));
+
+            // the maze is identical on every board, draw it once
+            wallLayer = new BufferedImage(boardW, boardH, BufferedImage.TYPE_INT_RGB);
+            Graphics2D wg = wallLayer.createGraphics();
+            wg.scale(scale, scale);
+            paintMaze(wg, MapCache.shared().walls, SCREEN_W, SCREEN_H);
+            wg.dispose();
+
+            spriteHalf = (int)Math.ceil(TILE * scale);
+
+            frame = new BufferedImage(cols * boardW, rows * boardH, BufferedImage.TYPE_INT_RGB);
+            frameG = frame.createGraphics();
+            frameG.setFont(new Font("Arial", Font.PLAIN, 11));
+            boards = new Board[count];
+
+            for (int i = 0; i < count; i++) {
+                boards[i] = new Board((i % cols) * boardW, (i / cols) * boardH);
+            }
+
+            setPreferredSize(new Dimension(frame.getWidth(), frame.getHeight()));
+            new Timer(1000 / FPS, this).start();
+        }
+
+        private BufferedImage newSprite(Graphics2D[] out) {
+
+            BufferedImage img = new BufferedImage(spriteHalf * 2, spriteHalf * 2, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(spriteHalf, spriteHalf);
+            g.scale(scale, scale);
+            out[0] = g;
+            return img;
+        }
+
+        private BufferedImage ghostSprite(Color body, String dir) {
+
+            long key = ((long)body.getRGB() << 8) | (dir == null ? 0 : dir.charAt(0));
+            BufferedImage img = ghostSprites.get(key);
+
+            if (img == null) {
+                Graphics2D[] g = new Graphics2D[1];
+                img = newSprite(g);
+                paintGhost(g[0], body, 0, 0, TILE/2-2, dir);
+                g[0].dispose();
+                ghostSprites.put(key, img);
+            }
+            return img;
+        }
+
+        private BufferedImage pacSprite(String face, double mouth) {
+
+            int step = (int)Math.round(Math.max(0, Math.min(1, mouth)) * (MOUTH_STEPS - 1));
+            int key = step * 256 + (face == null ? 0 : face.charAt(0));
+            BufferedImage img = pacSprites.get(key);
+
+            if (img == null) {
+                Graphics2D[] g = new Graphics2D[1];
+                img = newSprite(g);
+                paintPac(g[0], 0, 0, TILE/2-2, face, (double)step / (MOUTH_STEPS - 1));
+                g[0].dispose();
+                pacSprites.put(key, img);
+            }
+            return img;
+        }
+
+        public void actionPerformed(ActionEvent e) {
+
+            long now = System.nanoTime();
+            double dt = (now - lastNanos) / 1e9;
+            lastNanos = now;
+
+            for (Board b : boards) {
+                b.game.tick(dt);
+                if (b.game.gameOver && (b.overFor += dt) > RESTART_DELAY) {
+                    b.start();
+                }
+            }
+
+            for (Board b : boards) {
+                if (b.refresh()) {
+                    repaint(b.ox, b.oy, boardW, boardH);
+                }
+            }
+
+            framesInWindow++;
+            if (now - fpsWindowStart >= 1_000_000_000L) {
+                Window w = SwingUtilities.getWindowAncestor(this);
+                if (w instanceof JFrame) {
+                    ((JFrame) w).setTitle("Pac-Clone wall (" + boards.length + " games, " + framesInWindow + " fps)");
+                }
+                framesInWindow = 0;
+                fpsWindowStart = now;
+            }
+        }
+
+        protected void paintComponent(Graphics g) {
+            g.drawImage(frame, 0, 0, null);
+        }
     }
 
-    private Point pacFutureTile(int steps){
+    // --- Replays and video export ---
+
+    /**
+     * A session as its seed plus the key presses by tick, which is all a
+     * re-simulation needs. Recorded with -Dpacman.record=<file> (batch games
+     * append .<n>) and played back by --render. A press made while the tick
+     * counter read t takes effect in step t + 1, as it did live.
+     */
+    static final class Replay {
+        static final String HEADER = "pacman-replay 1";
+
+        final long seed;
+        final boolean autopilot;
+        final int tickRate;
+        final boolean perception;
+        final Path file;
+        long ticks = 0;
+        int score = -1;                    // checked on playback
+        private long[] pressTicks = new long[64];
+        private byte[] pressDirs = new byte[64];
+        private int presses = 0;
+
+        Replay(Path file, long seed, boolean autopilot, int tickRate, boolean perception) {
+            this.file = file;
+            this.seed = seed;
+            this.autopilot = autopilot;
+            this.tickRate = tickRate;
+            this.perception = perception;
+        }
 
-        Point tile = pac.tile();
-        String d = pac.dir != null ? pac.dir : pac.req;
+        static Replay recording(String suffix, long seed, boolean autopilot) {
+            String name = System.getProperty("pacman.record");
+            return name == null ? null : new Replay(Paths.get(name + suffix), seed, autopilot, TICK_RATE, PERCEPTION);
+        }
 
-        if (d == null){
-            return tile;
+        void press(long tick, String dir) {
+            if (presses == pressTicks.length) {
+                pressTicks = Arrays.copyOf(pressTicks, presses * 2);
+                pressDirs = Arrays.copyOf(pressDirs, presses * 2);
+            }
+            pressTicks[presses] = tick;
+            pressDirs[presses] = (byte)dir.charAt(0);
+            presses++;
         }
 
-        int tx = tile.x;
-        int ty = tile.y;
+        /** Applies the presses made at {@code tick}, starting from index {@code from}; returns the next index. */
+        int apply(PacmanClone game, long tick, int from) {
 
-        for (int i=0; i<steps; i++){
-            int nx = tx + dx(d);
-            int ny = ty + dy(d);
+            int i = from;
+            while (i < presses && pressTicks[i] <= tick) {
+                if (pressTicks[i] == tick) game.pac.req = String.valueOf((char)pressDirs[i]);
+                i++;
+            }
+            return i;
+        }
 
-            if (!inBounds(nx, ny) || isWall(nx, ny)){
-                break;
+        /** Index of the first press at or after {@code tick}. */
+        int seek(long tick) {
+            int lo = 0, hi = presses;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (pressTicks[mid] < tick) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        /** A fresh headless game that replays this session when stepped with apply(). */
+        PacmanClone newGame(ExecutorService ghostPool) {
+
+            PacmanClone game = new PacmanClone(ghostPool, seed);
+            game.autopilot = autopilot;
+            game.muted = true;
+            game.scoreRecorded = true;
+            game.aiScheduler = new AiScheduler(0, 0);
+            game.setSize(SCREEN_W, SCREEN_H);
+            return game;
+        }
+
+        void save() {
+
+            StringBuilder sb = new StringBuilder(HEADER).append('\n');
+            sb.append("seed ").append(seed).append('\n');
+            sb.append("autopilot ").append(autopilot).append('\n');
+            sb.append("tickRate ").append(tickRate).append('\n');
+            sb.append("perception ").append(perception).append('\n');
+            sb.append("ticks ").append(ticks).append('\n');
+            sb.append("score ").append(score).append('\n');
+            for (int i = 0; i < presses; i++) {
+                sb.append(pressTicks[i]).append(' ').append((char)pressDirs[i]).append('\n');
+            }
+            try {
+                Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                System.err.println("replay: cannot write " + file + ": " + ex.getMessage());
+            }
+        }
+
+        static Replay load(Path file) throws IOException {
+
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.size() < 7 || !HEADER.equals(lines.get(0))) {
+                throw new IOException(file + " is not a replay");
+            }
+            Replay r = new Replay(file, Long.parseLong(value(lines.get(1))), Boolean.parseBoolean(value(lines.get(2))),
+                    Integer.parseInt(value(lines.get(3))), Boolean.parseBoolean(value(lines.get(4))));
+            r.ticks = Long.parseLong(value(lines.get(5)));
+            r.score = Integer.parseInt(value(lines.get(6)));
+            for (String line : lines.subList(7, lines.size())) {
+                int sp = line.indexOf(' ');
+                if (sp > 0) r.press(Long.parseLong(line.substring(0, sp)), line.substring(sp + 1));
+            }
+            return r;
+        }
+
+        private static String value(String line) {
+            return line.substring(line.indexOf(' ') + 1).trim();
+        }
+    }
+
+    /**
+     * Renders a replay to a PNG sequence or an animated GIF much faster than
+     * real time. One pass re-simulates the session headlessly and keeps a
+     * Snapshot every segment. Worker threads then each restore a segment
+     * start into their own game, step it forward and draw frames through
+     * paintComponent into an offscreen image.
+     *
+     * PNGs are written by the workers under their frame number. GIF frames
+     * are quantized and LZW-compressed by the workers as well, and one writer
+     * appends them strictly in order. A worker more than WINDOW frames ahead
+     * of the writer waits, so memory does not grow with the session length.
+     */
+    static final class VideoExporter {
+        static final int FRAMES_PER_SEGMENT = 120;
+        static final int WINDOW = 256;
+
+        private final Replay replay;
+        private final int stride;          // steps per frame
+        private final double scale;
+        private final int threads;
+        private final int width, height;
+        private final List<Snapshot> segments = new ArrayList<>();
+        private long frames;
+        int finalScore;
+
+        // GIF hand-off, guarded by this
+        private final byte[][] ready = new byte[WINDOW][];
+        private long written = 0;
+        private Throwable failure = null;
+
+        VideoExporter(Replay replay, int fps, double scale, int threads) {
+            this.replay = replay;
+            this.stride = Math.max(1, (int)Math.round((double)TICK_RATE / fps));
+            this.scale = scale;
+            this.threads = Math.max(1, threads);
+            this.width = Math.max(1, (int)Math.round(SCREEN_W * scale));
+            this.height = Math.max(1, (int)Math.round(SCREEN_H * scale));
+        }
+
+        /** Exports to {@code out}: an animated GIF if it ends in .gif, otherwise a directory of PNGs. */
+        long export(Path out) throws IOException, InterruptedException {
+
+            boolean gif = out.toString().toLowerCase().endsWith(".gif");
+            ExecutorService ghostPool = Executors.newFixedThreadPool(2, r -> {
+                Thread t = new Thread(r, "render-ghosts");
+                t.setDaemon(true);
+                return t;
+            });
+            ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "render");
+                t.setDaemon(true);
+                return t;
+            });
+
+            try {
+                index(ghostPool);
+                if (!gif) Files.createDirectories(out);
+
+                AtomicInteger nextSegment = new AtomicInteger();
+                List<Future<?>> running = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    running.add(workers.submit(() -> {
+                        try {
+                            work(ghostPool, nextSegment, gif ? null : out);
+                        } catch (Throwable ex) {
+                            fail(ex);
+                        }
+                        return null;
+                    }));
+                }
+
+                if (gif) {
+                    try (OutputStream os = Files.newOutputStream(out)) {
+                        GifWriter writer = new GifWriter(os, width, height);
+                        for (long f = 0; f < frames; f++) {
+                            writer.frame(take(f));
+                        }
+                        writer.finish();
+                    }
+                }
+                for (Future<?> f : running) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException ex) {
+                        fail(ex.getCause());
+                    }
+                }
+                synchronized (this) {
+                    if (failure != null) throw new IOException("render failed", failure);
+                }
+                return frames;
+            } finally {
+                workers.shutdownNow();
+                ghostPool.shutdownNow();
             }
-            tx = nx;
-            ty = ny;
         }
-        tx = Math.max(0, Math.min(GRID_W-1, tx));
-        ty = Math.max(0, Math.min(GRID_H-1, ty));
 
-        return new Point(tx, ty);
-    }
+        /** The serial pass: one snapshot per segment start. */
+        private void index(ExecutorService ghostPool) {
 
-    private Point advanceUntilWall(Point start, String dir, int steps) {
+            PacmanClone game = replay.newGame(ghostPool);
+            long segmentTicks = (long)FRAMES_PER_SEGMENT * stride;
+            int cursor = 0;
 
-        if (dir == null){
-            return new Point(start);
+            while (true) {
+                if (game.tickCount % segmentTicks == 0) {
+                    Snapshot s = new Snapshot(game.ghosts.size());
+                    s.save(game);
+                    segments.add(s);
+                }
+                if (game.tickCount >= replay.ticks || game.gameOver) break;
+                cursor = replay.apply(game, game.tickCount, cursor);
+                game.updateGame(SIM_DT);
+            }
+            frames = game.tickCount / stride + 1;
+            finalScore = game.pac.score;
         }
 
-        int tx = start.x;
-        int ty = start.y;
-        for (int i = 0; i < steps; i++) {
-            int nx = tx + dx(dir);
-            int ny = ty + dy(dir);
-            if (!inBounds(nx, ny) || isWall(nx, ny)) break;
-            tx = nx;
-            ty = ny;
-        }
-        return new Point(tx, ty);
-    }
+        private void work(ExecutorService ghostPool, AtomicInteger nextSegment, Path pngDir) throws IOException, InterruptedException {
 
-    private Point smartRedTarget() {
+            PacmanClone game = replay.newGame(ghostPool);
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            int[] rgb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            byte[] indices = pngDir == null ? new byte[width * height] : null;
+            int s;
 
-        Point predicted = pacFutureTile(Ghost.Difficulty.INSANE.predictionTiles);
-        String heading = pac.dir != null ? pac.dir : pac.facing;
-        Point extended = advanceUntilWall(predicted, heading, 2);
-        Point pacTile = pac.tile();
-        int blendX = (int)Math.round((extended.x * 2 + pacTile.x) / 3.0);
-        int blendY = (int)Math.round((extended.y * 2 + pacTile.y) / 3.0);
-        blendX = Math.max(0, Math.min(GRID_W - 1, blendX));
-        blendY = Math.max(0, Math.min(GRID_H - 1, blendY));
+            while ((s = nextSegment.getAndIncrement()) < segments.size()) {
+                segments.get(s).restore(game);
+                long first = (long)s * FRAMES_PER_SEGMENT;
+                long end = Math.min(first + FRAMES_PER_SEGMENT, frames);
+                int cursor = replay.seek(game.tickCount);
 
-        return new Point(blendX, blendY);
-    }
+                for (long f = first; f < end; f++) {
+                    while (game.tickCount < f * stride) {
+                        cursor = replay.apply(game, game.tickCount, cursor);
+                        game.updateGame(SIM_DT);
+                    }
 
-    // movement helpers
-    private int dx(String d){
-        if ("L".equals(d)){
-            return -1;
-        } if ("R".equals(d)){
-            return 1;
-        } return 0;
-    }
+                    Graphics2D g = image.createGraphics();
+                    g.scale(scale, scale);
+                    game.paintComponent(g);
+                    g.dispose();
 
-    private int dy(String d){
+                    if (pngDir != null) {
+                        ImageIO.write(image, "png", pngDir.resolve(String.format("frame-%06d.png", f)).toFile());
+                    } else {
+                        put(f, GifWriter.encode(rgb, indices, width, height, stride * 100 / TICK_RATE));
+                    }
+                }
+            }
+        }
 
-        if ("U".equals(d)){
-            return -1;
-        } if ("D".equals(d)){
-            return 1;
-        } return 0;
-    }
-    private String opposite(String d){ if (d==null) return null; switch(d){ case "L": return "R"; case "R": return "L"; case "U": return "D"; case "D": return "U"; } return null; }
+        private synchronized void put(long frame, byte[] data) throws InterruptedException {
+            while (frame >= written + WINDOW && failure == null) wait();
+            ready[(int)(frame % WINDOW)] = data;
+            notifyAll();
+        }
 
-    private boolean collisionInDir(Entity e, String dir){
+        private synchronized byte[] take(long frame) throws IOException, InterruptedException {
 
-        if (dir == null){
-            return false;
+            int slot = (int)(frame % WINDOW);
+            while (ready[slot] == null) {
+                if (failure != null) throw new IOException("render failed", failure);
+                wait();
+            }
+            byte[] data = ready[slot];
+            ready[slot] = null;
+            written = frame + 1;
+            notifyAll();
+            return data;
         }
 
-        double look = TILE/2.0;
-        double nx = e.x + dx(dir)*look;
-        double ny = e.y + dy(dir)*look;
-        int tx = tileIndex(nx), ty = tileIndex(ny);
+        private synchronized void fail(Throwable ex) {
+            if (failure == null) failure = ex;
+            notifyAll();
+        }
+    }
 
-        if (!inBounds(tx,ty)) {
-            if ("L".equals(dir) || "R".equals(dir)) {
-                int row = tileIndex(e.y);
-                if (isTunnelRow(row)) {
-                    return false;
+    /**
+     * Minimal animated GIF writer. The palette is fixed (a 6x6x6 color cube,
+     * the game's own colors and grays), so frames can be quantized and
+     * compressed independently on any thread and then appended in order.
+     */
+    static final class GifWriter {
+        private static final byte[] PALETTE = new byte[768];
+        private static final byte[] LOOKUP = new byte[1 << 15];   // 5 bits per channel -> palette index
+
+        static {
+            int n = 0;
+            for (int r = 0; r < 6; r++) for (int g = 0; g < 6; g++) for (int b = 0; b < 6; b++) {
+                setColor(n++, r * 51, g * 51, b * 51);
+            }
+            List<Color> own = new ArrayList<>(Arrays.asList(NAVY, WALL_COLOR, PELLET_COLOR, POWER_COLOR, VULN_COLOR, Color.YELLOW));
+            own.addAll(Arrays.asList(GHOST_COLORS));
+            for (Color c : own) {
+                if (n < 256) setColor(n++, c.getRed(), c.getGreen(), c.getBlue());
+            }
+            for (int i = 0; n < 256; i++) {
+                int v = 8 + i * 12 % 248;
+                setColor(n++, v, v, v);
+            }
+            for (int k = 0; k < LOOKUP.length; k++) {
+                int r = (k >> 10 & 31) * 255 / 31, g = (k >> 5 & 31) * 255 / 31, b = (k & 31) * 255 / 31;
+                int best = 0, bestDist = Integer.MAX_VALUE;
+                for (int i = 0; i < 256; i++) {
+                    int dr = r - (PALETTE[i * 3] & 0xff), dg = g - (PALETTE[i * 3 + 1] & 0xff), db = b - (PALETTE[i * 3 + 2] & 0xff);
+                    int d = dr * dr + dg * dg + db * db;
+                    if (d < bestDist) {
+                        bestDist = d;
+                        best = i;
+                    }
                 }
+                LOOKUP[k] = (byte)best;
             }
-            return true;
         }
-        return isWall(tx,ty);
-    }
 
-    private void moveEntity(Entity e, String dir, double speed, double dt){
-        e.x += dx(dir) * speed * dt;
-        e.y += dy(dir) * speed * dt;
+        private static void setColor(int i, int r, int g, int b) {
+            PALETTE[i * 3] = (byte)r;
+            PALETTE[i * 3 + 1] = (byte)g;
+            PALETTE[i * 3 + 2] = (byte)b;
+        }
 
-        // wrap tunnels if out of bounds
-        if (e.x < -TILE / 2.0) {
-            e.x = SCREEN_W - TILE / 2.0;
-        } else if (e.x > SCREEN_W + TILE / 2.0) {
-            e.x = TILE / 2.0;
+        private final OutputStream out;
+
+        GifWriter(OutputStream out, int width, int height) throws IOException {
+
+            this.out = out;
+            out.write("GIF89a".getBytes(StandardCharsets.US_ASCII));
+            writeShort(width);
+            writeShort(height);
+            out.write(0xF7);                 // global palette of 256 colors
+            out.write(0);
+            out.write(0);
+            out.write(PALETTE);
+            // loop forever
+            out.write(new byte[]{0x21, (byte)0xFF, 0x0B});
+            out.write("NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[]{3, 1, 0, 0, 0});
         }
 
-        e.y = Math.max(e.radius, Math.min(SCREEN_H - e.radius, e.y));
-    }
+        void frame(byte[] encoded) throws IOException {
+            out.write(encoded);
+        }
 
-    private static class SoundManager {
-        enum Effect {
-            PELLET(1200, 50),
-            POWER(400, 220),
-            GHOST_EAT(250, 260),
-            PAC_DIE(180, 400);
+        void finish() throws IOException {
+            out.write(0x3B);
+            out.flush();
+        }
 
-            final double frequency;
-            final int durationMs;
+        private void writeShort(int v) throws IOException {
+            out.write(v & 0xff);
+            out.write(v >> 8 & 0xff);
+        }
 
-            Effect(double frequency, int durationMs) {
-                this.frequency = frequency;
-                this.durationMs = durationMs;
+        /** One complete frame block (delay, descriptor, image data); {@code indices} is scratch space. */
+        static byte[] encode(int[] rgb, byte[] indices, int width, int height, int delayCs) {
+
+            for (int i = 0; i < width * height; i++) {
+                int p = rgb[i];
+                indices[i] = LOOKUP[(p >> 9 & 0x7C00) | (p >> 6 & 0x3E0) | (p >> 3 & 0x1F)];
             }
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(width * height / 4);
+            block.write(0x21); block.write(0xF9); block.write(4);
+            block.write(0x04);               // leave the frame in place
+            block.write(delayCs & 0xff); block.write(delayCs >> 8 & 0xff);
+            block.write(0); block.write(0);
+
+            block.write(0x2C);
+            block.write(0); block.write(0); block.write(0); block.write(0);
+            block.write(width & 0xff); block.write(width >> 8 & 0xff);
+            block.write(height & 0xff); block.write(height >> 8 & 0xff);
+            block.write(0);
+            block.write(8);                  // minimum code size
+            lzw(indices, width * height, block);
+            block.write(0);
+            return block.toByteArray();
         }
 
-        private static final int SAMPLE_RATE = 16000;
-        private static final ExecutorService SOUND_EXECUTOR = Executors.newCachedThreadPool(r -> {
-            Thread t = new Thread(r, "sound-exec");
-            t.setDaemon(true);
-            return t;
-        });
+        private static final int HSIZE = 5003;
 
-        static void play(Effect effect) {
-            if (effect == null || SOUND_EXECUTOR.isShutdown()) return;
-            SOUND_EXECUTOR.submit(() -> playTone(effect.frequency, effect.durationMs));
-        }
+        /** GIF flavored LZW: variable code width from 9 to 12 bits, clear when the table is full. */
+        private static void lzw(byte[] px, int n, ByteArrayOutputStream out) {
 
-        private static void playTone(double frequency, int durationMs) {
-            AudioFormat format = new AudioFormat(SAMPLE_RATE, 8, 1, true, true);
-            int length = (int)(SAMPLE_RATE * (durationMs / 1000.0));
+            int[] keys = new int[HSIZE], codes = new int[HSIZE];
+            Arrays.fill(keys, -1);
+            Bits bits = new Bits(out);
+            int width = 9, next = 258;
 
-            if (length <= 0){
-                return;
+            bits.put(256, width);
+            int prefix = px[0] & 0xff;
+
+            for (int i = 1; i < n; i++) {
+                int k = px[i] & 0xff;
+                int key = (k << 12) | prefix;
+                int h = key % HSIZE;
+                while (keys[h] != -1 && keys[h] != key) h = h + 1 == HSIZE ? 0 : h + 1;
+
+                if (keys[h] == key) {
+                    prefix = codes[h];
+                    continue;
+                }
+
+                bits.put(prefix, width);
+                if (next > (1 << width) - 1 && width < 12) width++;
+
+                if (next < 4096) {
+                    keys[h] = key;
+                    codes[h] = next++;
+                } else {
+                    bits.put(256, width);
+                    Arrays.fill(keys, -1);
+                    width = 9;
+                    next = 258;
+                }
+                prefix = k;
             }
+            bits.put(prefix, width);
+            if (next > (1 << width) - 1 && width < 12) width++;
+            bits.put(257, width);
+            bits.flush();
+        }
 
-            byte[] data = new byte[length];
+        /** Packs codes LSB first into 255-byte data sub-blocks. */
+        private static final class Bits {
+            private final ByteArrayOutputStream out;
+            private final byte[] chunk = new byte[255];
+            private int used = 0, acc = 0, count = 0;
 
-            for (int i = 0; i < length; i++) {
-                double angle = 2.0 * Math.PI * i * frequency / SAMPLE_RATE;
-                double envelope = Math.min(1.0, 1.5 * (1 - (double)i / length));
-                data[i] = (byte)(Math.sin(angle) * 120 * envelope);
+            Bits(ByteArrayOutputStream out) {
+                this.out = out;
             }
-            SourceDataLine line = null;
-            try {
-                DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-                line = (SourceDataLine) AudioSystem.getLine(info);
-                line.open(format);
-                line.start();
-                line.write(data, 0, data.length);
-                line.drain();
-            } catch (LineUnavailableException | IllegalArgumentException ex) {
-                // ignore audio issues in headless environments
-            } finally {
-                if (line != null) {
-                    line.stop();
-                    line.close();
+
+            void put(int code, int width) {
+                acc |= code << count;
+                count += width;
+                while (count >= 8) {
+                    add(acc & 0xff);
+                    acc >>>= 8;
+                    count -= 8;
                 }
             }
-        }
 
-        static void shutdown() {
-            SOUND_EXECUTOR.shutdownNow();
-            try {
-                SOUND_EXECUTOR.awaitTermination(200, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            void flush() {
+                if (count > 0) add(acc & 0xff);
+                acc = count = 0;
+                if (used > 0) {
+                    out.write(used);
+                    out.write(chunk, 0, used);
+                    used = 0;
+                }
+            }
+
+            private void add(int b) {
+                chunk[used++] = (byte)b;
+                if (used == 255) {
+                    out.write(255);
+                    out.write(chunk, 0, 255);
+                    used = 0;
+                }
             }
         }
     }
 
     // --- Rendering ---
     protected void paintComponent(Graphics g0){
+        if (!firstFramePainted){
+            firstFramePainted = true;
+            StartupProfile.report("first frame painted");
+        }
         super.paintComponent(g0);
         Graphics2D g = (Graphics2D) g0;
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_NORMALIZE);
 
+        paintMaze(g, getWidth(), getHeight());
+        paintPellets(g);
+        paintEntities(g);
+        paintHud(g);
+    }
+
+    void paintMaze(Graphics2D g, int w, int h){
+        paintMaze(g, walls, w, h);
+    }
+
+    static void paintMaze(Graphics2D g, boolean[][] walls, int w, int h){
+
         // background
-        g.setColor(NAVY); g.fillRect(0,0,getWidth(),getHeight());
+        g.setColor(NAVY); g.fillRect(0,0,w,h);
 
         // draw walls
         g.setColor(WALL_COLOR);
         for (int y=0;y<GRID_H;y++) for (int x=0;x<GRID_W;x++) if (walls[x][y]){
             g.fillRect(x*TILE, y*TILE, TILE, TILE);
         }
+    }
+
+    void paintPellets(Graphics2D g){
 
         // pellets & powers
         for (int y=0;y<GRID_H;y++) for (int x=0;x<GRID_W;x++){
@@ -882,6 +5475,9 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
                 g.fillOval(c.x-6, c.y-6, 12, 12);
             }
         }
+    }
+
+    void paintEntities(Graphics2D g){
 
         // ghosts
         for (Ghost gh: ghosts) {
@@ -891,68 +5487,76 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
             }
 
             Color bodyColor = gh.vulnerable ? VULN_COLOR : gh.color;
-            int cx = (int)gh.x, cy = (int)gh.y, r = gh.radius;
-            int top = cy - r;
-            int left = cx - r;
-            int width = r * 2;
-            GeneralPath body = new GeneralPath();
-            body.moveTo(left, cy);
-            body.quadTo(left, top, cx, top);
-            body.quadTo(cx + r, top, cx + r, cy);
-            int scallops = 4;
-            double step = (double) width / scallops;
-            for (int i = scallops; i >= 0; i--) {
-                double px = left + i * step;
-                double py = cy + (i % 2 == 0 ? r : r - r / 2.0);
-                body.lineTo(px, py);
-            }
-            body.closePath();
-            g.setColor(bodyColor);
-            g.fill(body);
-            g.setColor(bodyColor.brighter());
-            g.fillOval(cx - r + 4, top + 4, r, r);
-            g.setColor(new Color(0,0,0,120));
-            g.fillOval(cx - r + 6, top + r, r/2, r/2);
-            Stroke oldStroke = g.getStroke();
-            g.setStroke(new BasicStroke(2f));
-            g.setColor(bodyColor.darker());
-            g.draw(body);
-            g.setStroke(oldStroke);
-
-            // eyes
-            g.setColor(Color.WHITE);
+            paintGhost(g, bodyColor, (int)gh.x, (int)gh.y, gh.radius, gh.dir);
+        }
+        // Pacman (draw as arc)
+        String face = pac.dir != null ? pac.dir : pac.facing;
+        paintPac(g, (int)pac.x, (int)pac.y, pac.radius, face, pac.mouth);
+    }
 
-            int ex = Math.max(6, r/2);
+    static void paintGhost(Graphics2D g, Color bodyColor, int cx, int cy, int r, String dir){
+
+        int top = cy - r;
+        int left = cx - r;
+        int width = r * 2;
+        GeneralPath body = new GeneralPath();
+        body.moveTo(left, cy);
+        body.quadTo(left, top, cx, top);
+        body.quadTo(cx + r, top, cx + r, cy);
+        int scallops = 4;
+        double step = (double) width / scallops;
+        for (int i = scallops; i >= 0; i--) {
+            double px = left + i * step;
+            double py = cy + (i % 2 == 0 ? r : r - r / 2.0);
+            body.lineTo(px, py);
+        }
+        body.closePath();
+        g.setColor(bodyColor);
+        g.fill(body);
+        g.setColor(bodyColor.brighter());
+        g.fillOval(cx - r + 4, top + 4, r, r);
+        g.setColor(new Color(0,0,0,120));
+        g.fillOval(cx - r + 6, top + r, r/2, r/2);
+        Stroke oldStroke = g.getStroke();
+        g.setStroke(new BasicStroke(2f));
+        g.setColor(bodyColor.darker());
+        g.draw(body);
+        g.setStroke(oldStroke);
+
+        // eyes
+        g.setColor(Color.WHITE);
 
-            g.fillOval(cx - ex - 4, cy - ex/2, ex, ex);
-            g.fillOval(cx + 4, cy - ex/2, ex, ex);
-            g.setColor(Color.BLACK);
+        int ex = Math.max(6, r/2);
 
-            int pup = Math.max(2, r/6);
-            int ox=0, oy=0;
+        g.fillOval(cx - ex - 4, cy - ex/2, ex, ex);
+        g.fillOval(cx + 4, cy - ex/2, ex, ex);
+        g.setColor(Color.BLACK);
 
-            if ("L".equals(gh.dir)){
-                ox=-3;
-            }
+        int pup = Math.max(2, r/6);
+        int ox=0, oy=0;
 
-            if ("R".equals(gh.dir)){
-                ox=3;
-            }
+        if ("L".equals(dir)){
+            ox=-3;
+        }
 
-            if ("U".equals(gh.dir)){
-                oy=-3;
-            }
+        if ("R".equals(dir)){
+            ox=3;
+        }
 
-            if ("D".equals(gh.dir)){
-                oy=3;
-            }
+        if ("U".equals(dir)){
+            oy=-3;
+        }
 
-            g.fillOval(cx - ex - 4 + ox, cy - ex/2 + oy, pup, pup);
-            g.fillOval(cx + 4 + ox, cy - ex/2 + oy, pup, pup);
+        if ("D".equals(dir)){
+            oy=3;
         }
-        // Pacman (draw as arc)
-        int pcx = (int)pac.x, pcy=(int)pac.y, pr = pac.radius;
-        String face = pac.dir != null ? pac.dir : pac.facing;
+
+        g.fillOval(cx - ex - 4 + ox, cy - ex/2 + oy, pup, pup);
+        g.fillOval(cx + 4 + ox, cy - ex/2 + oy, pup, pup);
+    }
+
+    static void paintPac(Graphics2D g, int pcx, int pcy, int pr, String face, double mouth){
+
         double angle = 0;
 
         if ("L".equals(face)){
@@ -968,7 +5572,7 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
             angle = 270;
         }
 
-        double open = 20 + 30 * pac.mouth;
+        double open = 20 + 30 * mouth;
         double start = angle - open;
         double extent = 360 - open*2;
         g.setColor(Color.YELLOW);
@@ -976,22 +5580,52 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         g.fill(arc);
         g.setColor(Color.BLACK);
         g.drawOval(pcx-pr, pcy-pr, pr*2, pr*2);
+    }
+
+    // Fonts are resolved on first paint, never in headless runs
+    private static Font hudFont, bannerFont;
+
+    private static Font hudFont(){
+        if (hudFont == null) hudFont = new Font("Arial", Font.PLAIN, 16);
+        return hudFont;
+    }
+
+    private static Font bannerFont(){
+        if (bannerFont == null) bannerFont = new Font("Arial", Font.BOLD, 36);
+        return bannerFont;
+    }
+
+    void paintHud(Graphics2D g){
 
         // HUD
         g.setColor(Color.WHITE);
-        g.setFont(new Font("Arial", Font.PLAIN, 16));
+        g.setFont(hudFont());
         g.drawString("Score: " + pac.score, 8, 18);
         g.drawString("Lives: " + pac.lives, SCREEN_W - 100, 18);
 
+        if (speedIndex != NORMAL_SPEED){
+            g.drawString(speedLabel(), SCREEN_W/2 - 12, 18);
+        }
+
+        if (versus != null){
+            g.drawString(versus.status(), 8, SCREEN_H - 8);
+        }
+
         if (paused){
-            g.setFont(new Font("Arial", Font.BOLD, 36));
+            g.setFont(bannerFont());
             g.drawString("PAUSED", SCREEN_W/2 - 70, SCREEN_H/2);
         }
 
         if (gameOver){
-            g.setFont(new Font("Arial", Font.BOLD, 36));
+            g.setFont(bannerFont());
             String msg = pac.lives<=0 ? "GAME OVER" : "YOU WIN!";
             g.drawString(msg, SCREEN_W/2 - 110, SCREEN_H/2);
+
+            if (bestForMap != null){
+                g.setFont(hudFont());
+                g.drawString("Best: " + bestForMap.score, SCREEN_W/2 - 110, SCREEN_H/2 + 28);
+                g.drawString(String.format("Better than %.1f%% of games", percentile), SCREEN_W/2 - 110, SCREEN_H/2 + 48);
+            }
         }
     }
 
@@ -1004,31 +5638,58 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
             System.exit(0);
         }
 
+        String d = keyDir(k);
+
+        if (versus != null){
+            // pausing or changing speed on one side only would split the game
+            if (d != null) versus.press(d);
+            return;
+        }
+
         if (k == KeyEvent.VK_P){
             paused = !paused;
         }
 
-        String d = null;
+        if (k == KeyEvent.VK_EQUALS || k == KeyEvent.VK_PLUS || k == KeyEvent.VK_ADD){
+            setSpeedIndex(speedIndex + 1);
+        }
+
+        if (k == KeyEvent.VK_MINUS || k == KeyEvent.VK_SUBTRACT){
+            setSpeedIndex(speedIndex - 1);
+        }
+
+        if (k == KeyEvent.VK_0){
+            setSpeedIndex(SPEEDS.length - 1);
+        }
+
+        if (k == KeyEvent.VK_1){
+            setSpeedIndex(NORMAL_SPEED);
+        }
+
+        if (d != null){
+            pac.req = d;
+            if (recording != null) recording.press(tickCount, d);
+        }
+    }
+
+    private static String keyDir(int k){
 
         if (k == KeyEvent.VK_LEFT || k == KeyEvent.VK_A){
-            d = "L";
+            return "L";
         }
 
         if (k == KeyEvent.VK_RIGHT || k == KeyEvent.VK_D){
-            d = "R";
+            return "R";
         }
 
         if (k == KeyEvent.VK_UP || k == KeyEvent.VK_W){
-            d = "U";
+            return "U";
         }
 
         if (k == KeyEvent.VK_DOWN || k == KeyEvent.VK_S){
-            d = "D";
-        }
-
-        if (d != null){
-            pac.req = d;
+            return "D";
         }
+        return null;
     }
 
     public void keyReleased(KeyEvent e){
@@ -1039,9 +5700,116 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
 
     }
 
+    static void renderReplay(Path in, Path out, int fps, double scale, int threads){
+
+        try {
+            Replay replay = Replay.load(in);
+            if (replay.tickRate != TICK_RATE || replay.perception != PERCEPTION){
+                System.err.println("render: recorded with tickRate " + replay.tickRate + ", perception " + replay.perception
+                        + "; set the same -Dpacman.tickRate and -Dpacman.perception or it will not play back");
+            }
+            long start = System.nanoTime();
+            VideoExporter video = new VideoExporter(replay, fps, scale, threads);
+            long frames = video.export(out);
+            double secs = (System.nanoTime() - start) / 1e9;
+            if (replay.score >= 0 && video.finalScore != replay.score){
+                System.err.println("render: playback diverged, scored " + video.finalScore + " instead of " + replay.score);
+            }
+            System.out.printf("%d frames (%.1f s of play) to %s in %.2f s, %.2f ms/frame%n",
+                    frames, replay.ticks / (double)TICK_RATE, out, secs, secs * 1000 / Math.max(1, frames));
+        } catch (IOException ex) {
+            System.err.println("render: " + ex.getMessage() + (ex.getCause() != null ? " (" + ex.getCause() + ")" : ""));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // --- Main ---
     public static void main(String[] args){
 
+        StartupProfile.mark("main");
+
+        if (Metrics.ENABLED){
+            Metrics.start();
+        }
+
+        if (args.length >= 1 && "--batch".equals(args[0])){
+            System.setProperty("java.awt.headless", "true");
+            runBatch(args.length >= 2 ? Integer.parseInt(args[1]) : 100);
+            Metrics.stop();
+            return;
+        }
+
+        if (args.length >= 1 && "--scores".equals(args[0])){
+            printScores(args.length >= 2 ? Integer.parseInt(args[1]) : 10);
+            return;
+        }
+
+        if (args.length >= 4 && "--versus".equals(args[0])){
+            boolean pacSide = "pac".equals(args[1]);
+            long latency = 0, seconds = 0;
+            double loss = 0;
+
+            for (int i = 4; i + 1 < args.length; i += 2){
+                if ("--latency".equals(args[i])) latency = Long.parseLong(args[i + 1]);
+                else if ("--loss".equals(args[i])) loss = Double.parseDouble(args[i + 1]);
+                else if ("--bot".equals(args[i])) seconds = Long.parseLong(args[i + 1]);
+            }
+
+            long seed = Long.getLong("pacman.seed", Versus.DEFAULT_SEED);
+            Link link;
+            try {
+                link = new Link(Integer.parseInt(args[2]), Integer.parseInt(args[3]), latency, loss);
+            } catch (IOException ex) {
+                System.err.println("versus: " + ex.getMessage());
+                return;
+            }
+
+            if (seconds > 0){
+                System.setProperty("java.awt.headless", "true");
+                runVersusBot(pacSide, link, seed, seconds);
+                Metrics.stop();
+                return;
+            }
+
+            JFrame frame = new JFrame("Pac-Clone versus (" + (pacSide ? "Pacman" : "Ghost") + ")");
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.setResizable(false);
+            frame.add(new PacmanClone(seed, link, pacSide));
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+            frame.setVisible(true);
+            return;
+        }
+
+        if (args.length >= 3 && "--render".equals(args[0])){
+            System.setProperty("java.awt.headless", "true");
+            int fps = 30, threads = Runtime.getRuntime().availableProcessors();
+            double scale = 1.0;
+
+            for (int i = 3; i + 1 < args.length; i += 2){
+                if ("--fps".equals(args[i])) fps = Integer.parseInt(args[i + 1]);
+                else if ("--scale".equals(args[i])) scale = Double.parseDouble(args[i + 1]);
+                else if ("--threads".equals(args[i])) threads = Integer.parseInt(args[i + 1]);
+            }
+            renderReplay(Paths.get(args[1]), Paths.get(args[2]), fps, scale, threads);
+            Metrics.stop();
+            return;
+        }
+
+        if (args.length >= 1 && "--wall".equals(args[0])){
+            int count = args.length >= 2 ? Integer.parseInt(args[1]) : 16;
+            Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+            JFrame frame = new JFrame("Pac-Clone wall");
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.setResizable(false);
+            frame.add(new SpectatorWall(Math.max(1, Math.min(64, count)), screen.width - 32, screen.height - 64));
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+            frame.setVisible(true);
+            return;
+        }
+
         JFrame frame = new JFrame("Pac-Clone (Java)");
         PacmanClone panel = new PacmanClone();
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -1050,5 +5818,6 @@ public class PacmanClone extends JPanel implements ActionListener, KeyListener {
         frame.pack();
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
+        StartupProfile.mark("window shown");
     }
 }
@@ -0,0 +1,49 @@
+#!/bin/sh
+# Launch profiles. The first run of each profile records a class-data-sharing
+# archive (pacman-<profile>.jsa, JDK 13+); later runs map it instead of
+# loading and verifying the same classes again.
+#
+#   ./run.sh              interactive game
+#   ./run.sh batch 100    headless autopilot games
+#   ./run.sh wall 36      spectator wall
+#   ./run.sh test         the checks in test/
+#
+# Extra JVM options can be passed in JAVA_OPTS.
+set -e
+cd "$(dirname "$0")"
+
+if [ "$1" = test ]; then
+    rm -rf build/test
+    mkdir -p build/test
+    javac -d build/test PacmanClone.java test/*.java
+    for t in test/*Test.java; do
+        java -ea -Djava.awt.headless=true $JAVA_OPTS -cp build/test "$(basename "$t" .java)"
+    done
+    exit 0
+fi
+
+# CDS only archives classes loaded from jars, so package the game first
+if [ ! -f pacman.jar ] || [ PacmanClone.java -nt pacman.jar ]; then
+    rm -rf build pacman-*.jsa
+    mkdir build
+    javac -d build PacmanClone.java
+    jar cfe pacman.jar PacmanClone -C build .
+    rm -rf build
+fi
+
+profile=${1:-game}
+opts=""
+case "$profile" in
+    batch) set -- --batch "${2:-100}"; opts="-Djava.awt.headless=true" ;;
+    wall)  set -- --wall "${2:-16}" ;;
+    *)     set -- ;;
+esac
+
+jsa="pacman-$profile.jsa"
+if [ -f "$jsa" ]; then
+    cds="-XX:SharedArchiveFile=$jsa"
+else
+    cds="-XX:ArchiveClassesAtExit=$jsa"
+fi
+
+exec java $cds $opts $JAVA_OPTS -jar pacman.jar "$@"
@@ -0,0 +1,45 @@
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The per-tick AI decision cap must not let thread timing pick which ghost
+ * decides: the same seed played twice on a ghost pool ends in the same state.
+ */
+public class AiSchedulerTest {
+
+    public static void main(String[] args) throws Exception {
+
+        File scores = File.createTempFile("pacman-scores", ".dat");
+        scores.deleteOnExit();
+        System.setProperty("pacman.scores", scores.getPath());
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (int cap = 1; cap <= 2; cap++) {
+                System.setProperty("pacman.aiDecisionsPerTick", Integer.toString(cap));
+                for (long seed = 11; seed < 21; seed++) {
+                    long first = play(pool, seed), second = play(pool, seed);
+                    check(first == second, "cap " + cap + ", seed " + seed + ": "
+                            + Long.toHexString(first) + " then " + Long.toHexString(second));
+                }
+            }
+        } finally {
+            System.clearProperty("pacman.aiDecisionsPerTick");
+            pool.shutdownNow();
+        }
+        System.out.println("AiSchedulerTest ok");
+    }
+
+    private static long play(ExecutorService pool, long seed) {
+        PacmanClone game = new PacmanClone(pool, seed);
+        game.runHeadless(600);
+        PacmanClone.Snapshot end = new PacmanClone.Snapshot(4);
+        end.save(game);
+        return end.hash();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
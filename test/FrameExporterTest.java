@@ -0,0 +1,108 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads a frame export while a game is publishing into it, through a ring
+ * small enough that slots are overwritten under the reader. Every frame the
+ * reader accepts as valid must be exactly the frame the writer published.
+ */
+public class FrameExporterTest {
+
+    private static final int FRAMES = 20000, SLOTS = 2, GAME_FRAMES = 3000;
+
+    public static void main(String[] args) throws Exception {
+
+        File scores = File.createTempFile("pacman-scores", ".dat");
+        scores.deleteOnExit();
+        System.setProperty("pacman.scores", scores.getPath());
+
+        Path file = Files.createTempFile("pacman-frames", ".bin");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        long[] written = new long[FRAMES];
+        long[] read = new long[FRAMES];
+        boolean[] seen = new boolean[FRAMES];
+        AtomicBoolean done = new AtomicBoolean();
+        int[] counts = new int[2];   // valid, torn or overwritten
+
+        try (PacmanClone.FrameExporter exporter = new PacmanClone.FrameExporter(file,
+                     PacmanClone.GRID_W, PacmanClone.GRID_H, PacmanClone.GHOST_COLORS.length, SLOTS);
+             PacmanClone.FrameExporter.Reader own = new PacmanClone.FrameExporter.Reader(file);
+             PacmanClone.FrameExporter.Reader other = new PacmanClone.FrameExporter.Reader(file)) {
+
+            Thread reader = new Thread(() -> {
+                while (!done.get()) {
+                    long f = other.latest();
+                    if (f < 0) continue;
+                    long print = fingerprint(other, f);
+                    if (other.valid(f)) {
+                        seen[(int)f] = true;
+                        read[(int)f] = print;
+                        counts[0]++;
+                    } else {
+                        counts[1]++;
+                    }
+                }
+            });
+            reader.start();
+
+            PacmanClone game = null;
+            double until = 0;
+            for (int f = 0; f < FRAMES; f++) {
+                if (f % GAME_FRAMES == 0) {
+                    game = new PacmanClone(pool, f);
+                    until = 0;
+                }
+                until += PacmanClone.SIM_DT;
+                game.runHeadless(until);
+                exporter.publish(game);
+                // only this thread writes, so its own read of the frame is the reference
+                written[f] = fingerprint(own, f);
+                if (f % 64 == 0) Thread.yield();
+            }
+            done.set(true);
+            reader.join();
+        } finally {
+            pool.shutdownNow();
+            Files.deleteIfExists(file);
+        }
+
+        for (int f = 0; f < FRAMES; f++) {
+            check(!seen[f] || read[f] == written[f], "frame " + f + " was torn");
+        }
+        check(counts[0] > 100, "reader saw only " + counts[0] + " valid frames");
+        System.out.println("FrameExporterTest ok (" + counts[0] + " frames read, " + counts[1] + " discarded)");
+    }
+
+    /** Hash of every field of {@code frame} as the reader sees it. */
+    private static long fingerprint(PacmanClone.FrameExporter.Reader r, long frame) {
+
+        long h = 0xcbf29ce484222325L;
+        h = mix(h, r.tick(frame));
+        h = mix(h, r.score(frame));
+        h = mix(h, r.lives(frame));
+        h = mix(h, Float.floatToIntBits(r.pacX(frame)));
+        h = mix(h, Float.floatToIntBits(r.pacY(frame)));
+        for (int i = 0; i < r.ghostSlots; i++) {
+            h = mix(h, Float.floatToIntBits(r.ghostX(frame, i)));
+            h = mix(h, Float.floatToIntBits(r.ghostY(frame, i)));
+        }
+        for (int y = 0; y < r.height; y++) {
+            for (int x = 0; x < r.width; x++) {
+                h = mix(h, r.tile(frame, x, y));
+            }
+        }
+        return h;
+    }
+
+    private static long mix(long h, long v) {
+        return (h ^ v) * 0x100000001b3L;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,168 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * GIF frames must decode to the palette indices they were quantized to, both
+ * with a plain GIF LZW decoder written here and with ImageIO's GIF reader.
+ * The images are chosen so the code width steps through 9 to 12 bits at
+ * every possible point and noise fills the table until clear codes follow.
+ */
+public class GifWriterTest {
+
+    private static final int CLEAR = 256, END = 257;
+
+    private static int clears, widest;
+
+    public static void main(String[] args) throws Exception {
+
+        Random rnd = new Random(1);
+
+        // single rows of noise: every pixel adds a code, so each length ends just
+        // before, on or after a width change somewhere
+        for (int n = 1; n <= 1400; n++) {
+            roundTrip(noise(rnd, n), n, 1, false);
+        }
+        for (int n = 2500; n <= 4200; n += 7) {
+            roundTrip(noise(rnd, n), n, 1, false);
+        }
+        check(widest == 12, "code width only reached " + widest);
+
+        // enough noise to fill the table many times over
+        clears = 0;
+        roundTrip(noise(rnd, 256 * 256), 256, 256, true);
+        check(clears >= 10, "only " + clears + " clear codes in 64K pixels of noise");
+
+        // long runs of one color grow codes without filling the table
+        clears = 0;
+        int[] flat = new int[320 * 200];
+        roundTrip(flat, 320, 200, true);
+        check(clears == 1, clears + " clear codes in a flat image");
+
+        // a flat image with noise stripes, as a game frame with moving sprites
+        int[] mixed = noise(rnd, 320 * 200);
+        for (int i = 0; i < mixed.length; i++) if ((i / 320) % 16 > 3) mixed[i] = 0x0A0A28;
+        roundTrip(mixed, 320, 200, true);
+
+        for (int n : new int[]{1, 2, 3, 255, 256, 257, 511, 512, 513, 1024, 2048, 4093, 4094, 4095, 4096, 4097}) {
+            roundTrip(noise(rnd, n), n, 1, true);
+        }
+        System.out.println("GifWriterTest ok");
+    }
+
+    private static int[] noise(Random rnd, int n) {
+        int[] rgb = new int[n];
+        for (int i = 0; i < n; i++) rgb[i] = rnd.nextInt(1 << 24);
+        return rgb;
+    }
+
+    private static void roundTrip(int[] rgb, int width, int height, boolean withImageIO) throws Exception {
+
+        byte[] indices = new byte[width * height];
+        byte[] block = PacmanClone.GifWriter.encode(rgb, indices, width, height, 3);
+
+        byte[] decoded = decode(block, width * height);
+        for (int i = 0; i < indices.length; i++) {
+            check(decoded[i] == indices[i], width + "x" + height + ": pixel " + i + " is "
+                    + (decoded[i] & 0xff) + ", encoded " + (indices[i] & 0xff));
+        }
+
+        if (withImageIO) {
+            ByteArrayOutputStream gif = new ByteArrayOutputStream();
+            PacmanClone.GifWriter writer = new PacmanClone.GifWriter(gif, width, height);
+            writer.frame(block);
+            writer.finish();
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(gif.toByteArray()));
+            check(img != null && img.getWidth() == width && img.getHeight() == height, "ImageIO could not read " + width + "x" + height);
+            for (int i = 0; i < indices.length; i++) {
+                int index = img.getRaster().getSample(i % width, i / width, 0);
+                check(index == (indices[i] & 0xff), "ImageIO, " + width + "x" + height + ": pixel " + i
+                        + " is " + index + ", encoded " + (indices[i] & 0xff));
+            }
+        }
+    }
+
+    /** Decodes the image data of one encode() block: control extension, descriptor, then LZW. */
+    private static byte[] decode(byte[] block, int pixels) {
+
+        int at = 8 + 10;
+        check(block[at] == 8, "minimum code size " + block[at]);
+        at++;
+
+        // join the sub-blocks
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (block[at] != 0) {
+            int len = block[at] & 0xff;
+            data.write(block, at + 1, len);
+            at += len + 1;
+        }
+        check(at == block.length - 1, "bytes after the block terminator");
+        byte[] in = data.toByteArray();
+
+        int[] prefix = new int[4096];
+        byte[] suffix = new byte[4096], first = new byte[4096];
+        int[] length = new int[4096];
+        for (int c = 0; c < 256; c++) {
+            suffix[c] = (byte)c;
+            first[c] = (byte)c;
+            length[c] = 1;
+        }
+
+        byte[] out = new byte[pixels];
+        int written = 0, codeWidth = 9, next = 258, prev = -1;
+        long bitPos = 0;
+
+        while (true) {
+            check(bitPos + codeWidth <= in.length * 8L, "data ends without an end code");
+            int code = 0;
+            for (int b = 0; b < codeWidth; b++, bitPos++) {
+                code |= ((in[(int)(bitPos >> 3)] >> (bitPos & 7)) & 1) << b;
+            }
+            widest = Math.max(widest, codeWidth);
+
+            if (code == CLEAR) {
+                clears++;
+                codeWidth = 9;
+                next = 258;
+                prev = -1;
+                continue;
+            }
+            if (code == END) {
+                break;
+            }
+            check(code <= next && (prev >= 0 || code < 256), "code " + code + " with " + next + " defined");
+
+            int entry = code;
+            if (code == next) {
+                // the code being defined right now: previous string plus its own first byte
+                check(prev >= 0, "undefined code " + code);
+                entry = -1;
+            }
+            if (prev >= 0 && next < 4096) {
+                prefix[next] = prev;
+                suffix[next] = entry >= 0 ? first[entry] : first[prev];
+                first[next] = first[prev];
+                length[next] = length[prev] + 1;
+                next++;
+                if (next == 1 << codeWidth && codeWidth < 12) codeWidth++;
+            }
+            if (entry < 0) entry = code;
+
+            check(written + length[entry] <= pixels, "more pixels than the image holds");
+            for (int c = entry, i = written + length[entry] - 1; ; c = prefix[c], i--) {
+                out[i] = suffix[c];
+                if (c < 256) break;
+            }
+            written += length[entry];
+            prev = code;
+        }
+        check(written == pixels, written + " pixels decoded of " + pixels);
+        return out;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
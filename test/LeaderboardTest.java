@@ -0,0 +1,114 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Score file under concurrent appends: every record lands, the top list and
+ * percentile ranks agree with a plain sort of what was appended, best per
+ * seed is the highest score of that seed, and a full map table is counted
+ * rather than silently dropped.
+ */
+public class LeaderboardTest {
+
+    private static final int THREADS = 8, PER_THREAD = 2000, SEEDS = 500;
+
+    public static void main(String[] args) throws Exception {
+
+        Path file = Files.createTempFile("pacman-scores", ".dat");
+        try (PacmanClone.Leaderboard board = new PacmanClone.Leaderboard(file)) {
+            int[][] scores = appendConcurrently(board);
+
+            List<Integer> all = new ArrayList<>();
+            int[] bestBySeed = new int[SEEDS];
+            for (int[] thread : scores) {
+                for (int i = 0; i < thread.length; i++) {
+                    all.add(thread[i]);
+                    int seed = seedOf(i);
+                    bestBySeed[seed] = Math.max(bestBySeed[seed], thread[i]);
+                }
+            }
+            Collections.sort(all, Collections.reverseOrder());
+
+            check(board.size() == all.size(), "size " + board.size() + ", appended " + all.size());
+
+            List<PacmanClone.Leaderboard.Entry> top = board.topK(PacmanClone.Leaderboard.TOP_K);
+            check(top.size() == PacmanClone.Leaderboard.TOP_K, "top list has " + top.size());
+            for (int i = 0; i < top.size(); i++) {
+                check(top.get(i).score == all.get(i), "top " + i + ": " + top.get(i).score + ", expected " + all.get(i));
+            }
+            check(board.topK(3).size() == 3, "topK(3)");
+
+            for (int score = 0; score <= 10000; score += 370) {
+                int below = 0;
+                for (int s : all) if (s < score) below++;
+                double expected = 100.0 * below / all.size();
+                double rank = board.percentileRank(score);
+                check(Math.abs(rank - expected) < 1e-9, "percentile of " + score + ": " + rank + ", expected " + expected);
+            }
+
+            for (int seed = 0; seed < SEEDS; seed++) {
+                PacmanClone.Leaderboard.Entry best = board.bestForSeed(seed);
+                check(best != null && best.seed == seed && best.score == bestBySeed[seed],
+                        "best for seed " + seed + ": " + (best == null ? "none" : best.score) + ", expected " + bestBySeed[seed]);
+            }
+            check(board.seedsDropped() == 0, "seeds dropped " + board.seedsDropped());
+
+            // more distinct maps than the map table holds
+            int maps = PacmanClone.Leaderboard.MAP_SLOTS + 100;
+            for (int m = 1; m <= maps; m++) {
+                board.append(0, 0, m, 10, 0, false);
+            }
+            long indexed = 0;
+            for (int m = 1; m <= maps; m++) {
+                if (board.bestForMap(m) != null) indexed++;
+            }
+            check(board.mapsDropped() >= 100, "maps dropped " + board.mapsDropped());
+            check(indexed + board.mapsDropped() == maps,
+                    indexed + " maps indexed and " + board.mapsDropped() + " dropped of " + maps);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("LeaderboardTest ok");
+    }
+
+    /** Appends PER_THREAD scores from each of THREADS threads at once; returns them per thread. */
+    private static int[][] appendConcurrently(PacmanClone.Leaderboard board) throws Exception {
+
+        int[][] scores = new int[THREADS][PER_THREAD];
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            int[] mine = scores[t];
+            Random rnd = new Random(t);
+            for (int i = 0; i < PER_THREAD; i++) mine[i] = rnd.nextInt(1000) * 10;
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < PER_THREAD; i++) {
+                    board.append(i, seedOf(i), 42, mine[i], 1, false);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        go.countDown();
+        for (Thread thread : threads) thread.join();
+        return scores;
+    }
+
+    private static int seedOf(int i) {
+        return i % SEEDS;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Macro-stepping must not change any game: the same seeds played with and
+ * without -Dpacman.macro end in the same state, at 60 and 20 Hz, with random
+ * turns per step and at junctions only. MACRO is fixed when the class loads,
+ * so each setting plays in a JVM of its own.
+ */
+public class MacroSteppingTest {
+
+    private static final int SEEDS = 20;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length > 0 && "play".equals(args[0])) {
+            play();
+            return;
+        }
+
+        for (String rate : new String[]{"60", "20"}) {
+            for (String junctionTurns : new String[]{"false", "true"}) {
+                String full = run(rate, junctionTurns, false);
+                String macro = run(rate, junctionTurns, true);
+                check(full.equals(macro), rate + " Hz, junctionTurns " + junctionTurns
+                        + ":\nfull  " + full + "\nmacro " + macro);
+            }
+        }
+        System.out.println("MacroSteppingTest ok");
+    }
+
+    /** Final score and state hash of each seed, one per line. */
+    private static void play() {
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (long seed = 5000; seed < 5000 + SEEDS; seed++) {
+                PacmanClone game = new PacmanClone(pool, seed);
+                int score = game.runHeadless(600);
+                PacmanClone.Snapshot end = new PacmanClone.Snapshot(4);
+                end.save(game);
+                System.out.println(seed + " " + score + " " + Long.toHexString(end.hash()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static String run(String rate, String junctionTurns, boolean macro) throws Exception {
+
+        File scores = File.createTempFile("pacman-scores", ".dat");
+        scores.deleteOnExit();
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-ea");
+        cmd.add("-Djava.awt.headless=true");
+        cmd.add("-Dpacman.scores=" + scores.getPath());
+        cmd.add("-Dpacman.tickRate=" + rate);
+        cmd.add("-Dpacman.junctionTurns=" + junctionTurns);
+        cmd.add("-Dpacman.macro=" + macro);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("MacroSteppingTest");
+        cmd.add("play");
+
+        Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = p.getInputStream()) {
+            in.transferTo(out);
+        }
+        check(p.waitFor() == 0, "player exited with " + p.exitValue());
+        String lines = out.toString(StandardCharsets.UTF_8.name()).trim();
+        check(lines.split("\n").length == SEEDS, "player printed:\n" + lines);
+        return lines;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
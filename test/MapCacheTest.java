@@ -0,0 +1,92 @@
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * A map cache file read back must answer exactly like the freshly derived
+ * artifacts, and a file whose header does not match must be ignored.
+ */
+public class MapCacheTest {
+
+    private static final String[] DIRS = {"U", "D", "L", "R"};
+
+    public static void main(String[] args) throws Exception {
+
+        Path dir = Files.createTempDirectory("pacman-mapcache");
+        Path file = dir.resolve("map.bin");
+        try {
+            PacmanClone.MapCache derived = PacmanClone.MapCache.derive(PacmanClone.RAW_MAP);
+            check(PacmanClone.MapCache.read(file, PacmanClone.MAP_HASH) == null, "missing file read back");
+
+            derived.write(file, PacmanClone.MAP_HASH);
+            PacmanClone.MapCache mapped = PacmanClone.MapCache.read(file, PacmanClone.MAP_HASH);
+            check(mapped != null, "fresh file rejected");
+            same(derived, mapped);
+
+            check(PacmanClone.MapCache.read(file, PacmanClone.MAP_HASH + 1) == null, "other map's file accepted");
+
+            byte[] good = Files.readAllBytes(file);
+            corrupt(file, 8, (byte) 1);            // version
+            check(PacmanClone.MapCache.read(file, PacmanClone.MAP_HASH) == null, "old version accepted");
+            Files.write(file, good);
+            corrupt(file, 40, (byte) 7);           // body length, caught by the header checksum
+            check(PacmanClone.MapCache.read(file, PacmanClone.MAP_HASH) == null, "bad checksum accepted");
+            Files.write(file, good);
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(good.length - 4);
+            }
+            check(PacmanClone.MapCache.read(file, PacmanClone.MAP_HASH) == null, "truncated file accepted");
+
+            // a stale file is simply replaced by the next write
+            derived.write(file, PacmanClone.MAP_HASH);
+            check(PacmanClone.MapCache.read(file, PacmanClone.MAP_HASH) != null, "rewritten file rejected");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+        System.out.println("MapCacheTest ok");
+    }
+
+    private static void same(PacmanClone.MapCache a, PacmanClone.MapCache b) {
+
+        check(a.width == b.width && a.height == b.height, "dimensions");
+        check(Objects.equals(a.pacStart, b.pacStart), "pac start");
+        check(a.ghostStarts.equals(b.ghostStarts), "ghost starts");
+        for (int y = 0; y < a.height; y++) {
+            check(a.tunnelRows[y] == b.tunnelRows[y], "tunnel row " + y);
+            for (int x = 0; x < a.width; x++) {
+                String at = x + "," + y;
+                check(a.walls[x][y] == b.walls[x][y], "wall " + at);
+                check(a.pellets[x][y] == b.pellets[x][y], "pellet " + at);
+                check(a.powers[x][y] == b.powers[x][y], "power " + at);
+                check(a.junctions.isNode(x, y) == b.junctions.isNode(x, y), "node " + at);
+                for (String d : DIRS) {
+                    check(a.junctions.edgeEnd(x, y, d) == b.junctions.edgeEnd(x, y, d), "edge end " + at + d);
+                    check(a.junctions.edgeLength(x, y, d) == b.junctions.edgeLength(x, y, d), "edge length " + at + d);
+                    check(Objects.equals(a.junctions.follow(x, y, d), b.junctions.follow(x, y, d)), "follow " + at + d);
+                }
+            }
+        }
+
+        Random rnd = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            int ax = rnd.nextInt(a.width), ay = rnd.nextInt(a.height);
+            int bx = rnd.nextInt(a.width), by = rnd.nextInt(a.height);
+            check(a.sightlines.sees(ax, ay, bx, by) == b.sightlines.sees(ax, ay, bx, by),
+                    "sight " + ax + "," + ay + " to " + bx + "," + by);
+        }
+    }
+
+    private static void corrupt(Path file, long at, byte value) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(at);
+            raf.write(value);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Eats the maze's pellets in random orders and checks after every removal
+ * that the incrementally updated index matches one built from scratch.
+ */
+public class PelletIndexTest {
+
+    public static void main(String[] args) {
+
+        PacmanClone.MapCache map = PacmanClone.MapCache.derive(PacmanClone.RAW_MAP);
+        int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        for (long seed = 0; seed < seeds; seed++) {
+            boolean[][] pellets = copy(map.pellets), powers = copy(map.powers);
+            PacmanClone.PelletIndex index = new PacmanClone.PelletIndex(map.walls, map.tunnelRows, pellets, powers);
+
+            List<int[]> food = new ArrayList<>();
+            for (int x = 0; x < map.width; x++) {
+                for (int y = 0; y < map.height; y++) {
+                    if (pellets[x][y] || powers[x][y]) food.add(new int[]{x, y});
+                }
+            }
+            Collections.shuffle(food, new Random(seed));
+
+            for (int[] t : food) {
+                index.remove(t[0], t[1]);
+                index.remove(t[0], t[1]);    // eating an empty tile changes nothing
+                pellets[t[0]][t[1]] = false;
+                powers[t[0]][t[1]] = false;
+                same(index, new PacmanClone.PelletIndex(map.walls, map.tunnelRows, pellets, powers),
+                        "seed " + seed + " after " + t[0] + "," + t[1]);
+            }
+            check(index.remaining() == 0, "seed " + seed + ": " + index.remaining() + " left at the end");
+
+            // reload puts everything back, as after a rollback
+            index.reload(map.pellets, map.powers);
+            same(index, new PacmanClone.PelletIndex(map.walls, map.tunnelRows, map.pellets, map.powers),
+                    "seed " + seed + " after reload");
+        }
+        System.out.println("PelletIndexTest ok");
+    }
+
+    private static void same(PacmanClone.PelletIndex a, PacmanClone.PelletIndex b, String when) {
+
+        check(a.remaining() == b.remaining(), when + ": remaining " + a.remaining() + " vs " + b.remaining());
+        for (int x = 0; x < a.width; x++) {
+            for (int y = 0; y < a.height; y++) {
+                check(a.foodDistance(x, y) == b.foodDistance(x, y), when + ": distance at " + x + "," + y
+                        + " is " + a.foodDistance(x, y) + ", rebuilt " + b.foodDistance(x, y));
+            }
+        }
+    }
+
+    private static boolean[][] copy(boolean[][] grid) {
+        boolean[][] out = new boolean[grid.length][];
+        for (int i = 0; i < grid.length; i++) out[i] = grid[i].clone();
+        return out;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}
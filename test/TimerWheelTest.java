@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Timer wheel edge cases: deadlines more than one lap of the wheel away,
+ * timeouts re-armed for the tick that is firing, and cancellation, including
+ * from inside another timeout's task.
+ */
+public class TimerWheelTest {
+
+    private static final List<String> fired = new ArrayList<>();
+
+    public static void main(String[] args) {
+
+        wraparound();
+        sameTickReschedule();
+        cancel();
+        System.out.println("TimerWheelTest ok");
+    }
+
+    /** Deadlines that share a bucket fire on their own lap, whether stepped or jumped to. */
+    private static void wraparound() {
+
+        PacmanClone.TimerWheel wheel = new PacmanClone.TimerWheel(8);
+        PacmanClone.TimerWheel.Timeout a = timeout(wheel, "a"), b = timeout(wheel, "b"), c = timeout(wheel, "c");
+        wheel.schedule(c, 19);
+        wheel.schedule(a, 3);
+        wheel.schedule(b, 11);
+
+        for (long tick = 1; tick <= 12; tick++) wheel.advance(tick);
+        expect("a@3", "b@11");
+
+        // one jump over several laps still fires in deadline order
+        wheel.schedule(b, 100);
+        wheel.schedule(a, 36);
+        wheel.advance(1000);
+        expect("c@19", "a@36", "b@100");
+        check(wheel.current() == 1000, "clock at " + wheel.current());
+
+        // a wheel far into its run keeps going
+        wheel.schedule(a, wheel.current() + 8 * 5 + 3);
+        wheel.advance(wheel.current() + 8 * 5 + 2);
+        expect();
+        wheel.advance(wheel.current() + 1);
+        expect("a@1043");
+    }
+
+    /** A timeout re-armed for the tick being fired waits for the next tick, and runs once per tick. */
+    private static void sameTickReschedule() {
+
+        PacmanClone.TimerWheel wheel = new PacmanClone.TimerWheel(16);
+        PacmanClone.TimerWheel.Timeout[] self = new PacmanClone.TimerWheel.Timeout[1];
+        int[] runs = {0};
+        self[0] = new PacmanClone.TimerWheel.Timeout(() -> {
+            fired.add("self@" + wheel.current());
+            if (++runs[0] < 3) wheel.schedule(self[0], wheel.current());
+        });
+        wheel.schedule(self[0], 5);
+        wheel.advance(20);
+        expect("self@5", "self@6", "self@7");
+
+        // FIFO within a tick; re-arming one for the same tick moves it to the back
+        PacmanClone.TimerWheel.Timeout a = timeout(wheel, "a"), b = timeout(wheel, "b"), c = timeout(wheel, "c");
+        wheel.schedule(a, 30);
+        wheel.schedule(b, 30);
+        wheel.schedule(c, 30);
+        wheel.schedule(a, 30);
+        wheel.advance(30);
+        expect("b@30", "c@30", "a@30");
+
+        // a task arming another timeout for its own tick pushes it to the next
+        PacmanClone.TimerWheel.Timeout late = timeout(wheel, "late");
+        PacmanClone.TimerWheel.Timeout early = new PacmanClone.TimerWheel.Timeout(() -> {
+            fired.add("early@" + wheel.current());
+            wheel.schedule(late, wheel.current());
+        });
+        wheel.schedule(early, 40);
+        wheel.advance(45);
+        expect("early@40", "late@41");
+
+        // deadlines already passed fire on the next tick
+        wheel.schedule(a, 10);
+        wheel.advance(46);
+        expect("a@46");
+    }
+
+    private static void cancel() {
+
+        PacmanClone.TimerWheel wheel = new PacmanClone.TimerWheel(8);
+        PacmanClone.TimerWheel.Timeout a = timeout(wheel, "a"), b = timeout(wheel, "b"), c = timeout(wheel, "c");
+
+        wheel.schedule(a, 4);
+        wheel.schedule(b, 4);
+        wheel.schedule(c, 4);
+        wheel.cancel(b);
+        wheel.cancel(b);    // cancelling an idle timeout is a no-op
+        check(!b.isScheduled() && a.isScheduled(), "scheduled flags");
+        wheel.advance(4);
+        expect("a@4", "c@4");
+        check(!a.isScheduled() && !c.isScheduled(), "fired timeouts still scheduled");
+
+        // cancelled from inside an earlier task of the same tick
+        PacmanClone.TimerWheel.Timeout killer = new PacmanClone.TimerWheel.Timeout(() -> {
+            fired.add("killer@" + wheel.current());
+            wheel.cancel(b);
+        });
+        wheel.schedule(killer, 12);
+        wheel.schedule(b, 12);
+        wheel.schedule(c, 20);     // same bucket as 12, next lap
+        wheel.advance(20);
+        expect("killer@12", "c@20");
+
+        // with nothing pending, advance jumps straight to the tick
+        wheel.schedule(a, 30);
+        wheel.cancel(a);
+        wheel.advance(1_000_000);
+        expect();
+        check(wheel.current() == 1_000_000, "clock at " + wheel.current());
+
+        // clear forgets everything and restarts the clock
+        wheel.schedule(a, 1_000_005);
+        wheel.clear(50);
+        check(!a.isScheduled(), "cleared timeout still scheduled");
+        wheel.schedule(b, 52);
+        wheel.advance(1_000_010);
+        expect("b@52");
+    }
+
+    private static PacmanClone.TimerWheel.Timeout timeout(PacmanClone.TimerWheel wheel, String name) {
+        return new PacmanClone.TimerWheel.Timeout(() -> fired.add(name + "@" + wheel.current()));
+    }
+
+    private static void expect(String... events) {
+        check(fired.equals(Arrays.asList(events)), "fired " + fired + ", expected " + Arrays.asList(events));
+        fired.clear();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+    }
+}